@@ -0,0 +1,161 @@
+package ich.bins;
+
+import com.amazonaws.services.glacier.TreeHashGenerator;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the tree hash of one part, as computed on the upload path.
+ *
+ * <p>The {@code megabytes} counter is the throughput in MB/s.
+ * Run with {@code -prof gc} to see the allocation per part ({@code gc.alloc.rate.norm}),
+ * and with {@code -t N} to hash on N threads at once; each thread has a part of its own.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TreeHashBenchmark {
+
+  /**
+   * sdk: {@code TreeHashGenerator.calculateTreeHash}, followed by the linear hash that
+   * the request signer used to compute from the body stream, as the upload path used to do;
+   * leaves: {@link TreeHashes#digestLeaves}, as in {@link ChannelPartSource};
+   * parallel: {@link TreeHashes#digestLeavesInParallel}, as in {@link MappedFile}.
+   * The last two compute the linear hash in the same pass.
+   */
+  @Param({"sdk", "leaves", "parallel"})
+  public String hasher;
+
+  @Param({"1", "4", "16", "64"})
+  public int partSizeMb;
+
+  @Param({"heap", "direct", "mapped"})
+  public String buffer;
+
+  private ByteBuffer part;
+  private byte[] array;
+  private Path file;
+  private FileChannel channel;
+
+  /**
+   * Counts the hashed bytes, so that JMH reports them as a rate.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Bytes {
+
+    public long megabytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      megabytes = 0;
+    }
+  }
+
+  @Setup
+  public void setUp() throws IOException {
+    int size = partSizeMb * TreeHashes.leafSize;
+    byte[] data = new byte[size];
+    new Random(size).nextBytes(data);
+    switch (buffer) {
+      case "heap":
+        part = ByteBuffer.wrap(data);
+        array = data;
+        break;
+      case "direct":
+        part = ByteBuffer.allocateDirect(size);
+        part.put(data).flip();
+        break;
+      case "mapped":
+        file = Files.createTempFile("tree-hash-benchmark", ".bin");
+        Files.write(file, data);
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        part = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown buffer: " + buffer);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    if (channel != null) {
+      channel.close();
+      Files.delete(file);
+    }
+  }
+
+  @Benchmark
+  public Object treeHash(Bytes bytes) throws IOException {
+    bytes.megabytes += partSizeMb;
+    switch (hasher) {
+      case "sdk":
+        TreeHashGenerator.calculateTreeHash(stream());
+        return linearHash(stream());
+      case "leaves": {
+        LeafDigests leaves = LeafDigests.forLength(part.remaining());
+        MessageDigest digest = TreeHashes.sha256();
+        try {
+          TreeHashes.digestLeaves(digest, part, leaves);
+        } finally {
+          TreeHashes.release(digest);
+        }
+        return leaves.root();
+      }
+      case "parallel": {
+        LeafDigests leaves = LeafDigests.forLength(part.remaining());
+        TreeHashes.digestLeavesInParallel(part, leaves);
+        return leaves.root();
+      }
+      default:
+        throw new IllegalArgumentException("Unknown hasher: " + hasher);
+    }
+  }
+
+  private static byte[] linearHash(InputStream in) throws IOException {
+    MessageDigest digest = TreeHashes.sha256();
+    // the signer reads the body in chunks of this size
+    byte[] chunk = new byte[1024];
+    try {
+      for (int n; (n = in.read(chunk)) >= 0; ) {
+        digest.update(chunk, 0, n);
+      }
+      return digest.digest();
+    } finally {
+      TreeHashes.release(digest);
+    }
+  }
+
+  private InputStream stream() {
+    return array != null ?
+        new ByteArrayInputStream(array) :
+        new ByteBufferInputStream(part.duplicate());
+  }
+}
@@ -0,0 +1,186 @@
+package ich.bins;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkBaseException;
+import com.amazonaws.http.timers.client.ClientExecutionTimeoutException;
+import com.amazonaws.retry.RetryUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.SocketTimeoutException;
+
+/**
+ * Decides how many part uploads may run at the same time, by additive increase
+ * and multiplicative decrease.
+ *
+ * <p>Completed uploads are measured in windows of about one upload per allowed slot.
+ * After each window, the limit goes up by one if the throughput went up by a few percent,
+ * so it keeps growing while more uploads make better use of the link.
+ * The limit is cut by a third if glacier throttles, if an upload times out, or if
+ * the time per byte rises well above the best that was seen, which means that
+ * the uploads only wait for each other. Congestion is acted on once:
+ * uploads that started before the last cut are not measured, and do not cut again.
+ */
+final class AdaptiveConcurrency {
+
+  private static final Logger log = LoggerFactory.getLogger(AdaptiveConcurrency.class);
+
+  private static final double decrease = 0.67;
+  // the throughput must grow by this factor for the limit to go up again
+  private static final double improvement = 1.05;
+  // the time per byte may grow by this factor above the best window before the limit goes down
+  private static final double latencyTolerance = 1.5;
+  // the best time per byte is forgotten slowly, so that it follows lasting changes of the link
+  private static final double latencyDrift = 1.05;
+
+  private final int min;
+  private final int max;
+
+  // guarded by this
+  private int limit;
+  private int inFlight;
+  private long lastDecrease;
+  private long windowStart = System.nanoTime();
+  private long windowBytes;
+  private long windowLatency;
+  private int windowUploads;
+  private double lastThroughput;
+  private double bestLatency = Double.MAX_VALUE;
+
+  AdaptiveConcurrency(int initial, int min, int max) {
+    if (min < 1 || max < min) {
+      throw new IllegalArgumentException("Concurrency bounds must satisfy 1 <= min <= max: " +
+          min + ", " + max);
+    }
+    this.min = min;
+    this.max = max;
+    this.limit = Math.max(min, Math.min(max, initial));
+    this.lastDecrease = windowStart;
+  }
+
+  synchronized int limit() {
+    return limit;
+  }
+
+  /**
+   * Blocks until another part may be uploaded.
+   * Parts should be acquired in order, so that parts that are read ahead
+   * in order are also uploaded in order.
+   */
+  synchronized void acquire() throws InterruptedException {
+    while (inFlight >= limit) {
+      wait();
+    }
+    inFlight++;
+  }
+
+  /**
+   * Called when a part is done, successfully or not.
+   */
+  synchronized void release() {
+    inFlight--;
+    notifyAll();
+  }
+
+  /**
+   * Called when an attempt to upload {@code bytes} that started at {@code start} has succeeded.
+   */
+  synchronized void uploaded(long start, long bytes) {
+    if (start - lastDecrease < 0) {
+      // it ran alongside more uploads than are allowed now
+      return;
+    }
+    long now = System.nanoTime();
+    windowBytes += bytes;
+    windowLatency += now - start;
+    windowUploads++;
+    if (windowUploads >= limit) {
+      endWindow(now);
+    }
+  }
+
+  /**
+   * Called when an attempt that started at {@code start} has failed.
+   */
+  synchronized void failed(long start, Exception e) {
+    if (start - lastDecrease < 0) {
+      return;
+    }
+    if (isThrottling(e)) {
+      cut("throttled: " + e.getMessage());
+    } else if (isTimeout(e)) {
+      cut("timed out: " + e.getMessage());
+    }
+  }
+
+  private void endWindow(long now) {
+    double throughput = windowBytes / ((now - windowStart) / 1e9);
+    double latency = windowLatency / (double) windowBytes;
+    double best = bestLatency;
+    bestLatency = Math.min(latency, bestLatency * latencyDrift);
+    if (latency > best * latencyTolerance) {
+      cut(String.format("latency rose to %.0f ms/MB, best was %.0f ms/MB",
+          latency * 1048576 / 1e6, best * 1048576 / 1e6));
+      return;
+    }
+    if (throughput > lastThroughput * improvement && limit < max) {
+      log.info(String.format("Concurrency %d -> %d (throughput %.1f MB/s, was %.1f MB/s)",
+          limit, limit + 1, throughput / 1048576, lastThroughput / 1048576));
+      limit++;
+      notifyAll();
+    } else {
+      log.debug(String.format("Concurrency stays at %d (throughput %.1f MB/s, was %.1f MB/s)",
+          limit, throughput / 1048576, lastThroughput / 1048576));
+    }
+    lastThroughput = throughput;
+    startWindow(now);
+  }
+
+  private void cut(String reason) {
+    int newLimit = Math.max(min, (int) (limit * decrease));
+    if (newLimit != limit) {
+      log.info("Concurrency " + limit + " -> " + newLimit + " (" + reason + ")");
+      limit = newLimit;
+    }
+    lastDecrease = System.nanoTime();
+    // measure the new limit from scratch, so that it may grow again
+    lastThroughput = 0;
+    startWindow(lastDecrease);
+  }
+
+  private void startWindow(long now) {
+    windowStart = now;
+    windowBytes = 0;
+    windowLatency = 0;
+    windowUploads = 0;
+  }
+
+  private static boolean isThrottling(Exception e) {
+    return e instanceof AmazonServiceException &&
+        (RetryUtils.isThrottlingException((SdkBaseException) e) ||
+            ((AmazonServiceException) e).getStatusCode() == 503);
+  }
+
+  private static boolean isTimeout(Exception e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof SocketTimeoutException ||
+          cause instanceof ClientExecutionTimeoutException ||
+          isHttpTimeout(cause.getClass())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The timeouts of the java 21 http client, which is not on the class path of older jvms.
+   */
+  private static boolean isHttpTimeout(Class<?> type) {
+    for (; type != null; type = type.getSuperclass()) {
+      if (type.getName().equals("java.net.http.HttpTimeoutException")) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -6,73 +6,91 @@ import com.amazonaws.auth.profile.ProfileCredentialsProvider;
 import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.services.glacier.AmazonGlacier;
 import com.amazonaws.services.glacier.AmazonGlacierClientBuilder;
-import com.amazonaws.services.glacier.TreeHashGenerator;
+import com.amazonaws.services.glacier.model.AbortMultipartUploadRequest;
 import com.amazonaws.services.glacier.model.CompleteMultipartUploadRequest;
 import com.amazonaws.services.glacier.model.CompleteMultipartUploadResult;
 import com.amazonaws.services.glacier.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.glacier.model.InitiateMultipartUploadResult;
-import com.amazonaws.services.glacier.model.UploadMultipartPartResult;
 import com.amazonaws.util.BinaryUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.stream.Collectors;
 
 public final class ArchiveMPU implements Closeable {
 
-  private static final int partSize = 1048576; // 1 MB.
-  private static final int clientLife = 60; // see comment below
-  private static final int threads = 4;
+  private static final int clientLife = 60; // see ClientPool
+  private static final int clientCount = 4;
+  private static final int initialConcurrency = 4;
 
   private static final Logger log = LoggerFactory.getLogger(ArchiveMPU.class);
 
   final Arguments arguments;
+  final ClientPool clients;
 
-  private ArchiveMPU(Arguments arguments) {
-    this.arguments = arguments;
-  }
+  private final int partSize;
 
-  public static void main(String[] args) throws IOException, InterruptedException {
+  // the memory for part buffers, known before the upload is started
+  private final long memoryBudget;
 
-    try (ArchiveMPU archiveMPU = new ArchiveMPU(Arguments_Parser.create().parseOrExit(args))) {
-      log.info("File size: " + archiveMPU.arguments.fileToUpload().toFile().length());
-      InitiateMultipartUploadResult initiateUploadResult =
-          archiveMPU.initiateMultipartUpload();
-      log.info(initiateUploadResult.toString());
-      String uploadId = initiateUploadResult.getUploadId();
-      String checksum = archiveMPU.uploadParts(uploadId);
-      CompleteMultipartUploadResult result = archiveMPU.completeMultiPartUpload(
-          uploadId, checksum);
-      log.info("Upload finished: " + result);
+  // null if no checkpoint file was given
+  private Checkpoint checkpoint;
+
+  // the alignment of direct reads, known once the file was opened for them
+  private int directBlockSize = 1;
+
+  private ArchiveMPU(Arguments arguments) throws IOException {
+    this.arguments = arguments;
+    this.checkpoint = arguments.checkpoint().isPresent() ?
+        Checkpoint.load(arguments.checkpoint().get()) :
+        null;
+    if (checkpoint != null) {
+      checkpoint.verify(arguments.vaultName(), inputSize(), inputModified());
     }
+    this.partSize = checkpoint != null ? checkpoint.partSize() : partSize();
+    this.memoryBudget = memoryBudget();
+    this.clients = new ClientPool(this::_client, clientCount, clientLife);
   }
 
-  private AmazonGlacier client = null;
-  private final AtomicLong connectionCount = new AtomicLong();
-
-  synchronized AmazonGlacier client() {
-    if (client == null) {
-      client = _client();
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (args.length > 0 && args[0].equals("fingerprint")) {
+      Fingerprint.main(Arrays.copyOfRange(args, 1, args.length));
+      return;
     }
-    if (connectionCount.incrementAndGet() % clientLife == 0) {
-      // not sure why but it seemed that without this, connections would degrade over time
-      client.shutdown();
-      client = _client();
+    try (ArchiveMPU archiveMPU = new ArchiveMPU(Arguments_Parser.create().parseOrExit(args))) {
+      if (!archiveMPU.fromStdin()) {
+        log.info("File size: " + archiveMPU.arguments.fileToUpload().toFile().length());
+      }
+      log.info("Part size: " + archiveMPU.partSize);
+      if (archiveMPU.fromStdin()) {
+        log.info("Largest archive with this part size: " +
+            PartSizes.largestArchive(archiveMPU.partSize) / 1048576 + " MB");
+      }
+      String uploadId = archiveMPU.startOrResume();
+      UploadedParts parts;
+      CompleteMultipartUploadResult result;
+      try {
+        parts = archiveMPU.uploadParts(uploadId);
+        result = archiveMPU.completeMultiPartUpload(uploadId, parts);
+      } catch (IOException | InterruptedException | RuntimeException e) {
+        archiveMPU.abort(uploadId);
+        throw e;
+      }
+      // the upload is complete, so it can neither be aborted nor continued
+      if (archiveMPU.checkpoint != null) {
+        archiveMPU.checkpoint.delete();
+      }
+      verifyArchive(parts, result);
+      log.info("Upload finished: " + result);
     }
-    return client;
   }
 
   private AmazonGlacier _client() {
@@ -82,10 +100,32 @@ public final class ArchiveMPU implements Closeable {
             new AwsClientBuilder.EndpointConfiguration(
                 arguments.serviceEndpoint(),
                 arguments.signingRegion()))
-        .withClientConfiguration(new ClientConfiguration())
+        .withClientConfiguration(new ClientConfiguration()
+            .withSignerOverride(PayloadHashSigner.register())
+            // one connection per concurrent upload and per hedge, and a few for the other requests
+            .withMaxConnections(2 * maxConcurrency() + 2))
         .build();
   }
 
+  /**
+   * @return the id of the upload that the checkpoint belongs to,
+   * or of a new upload
+   */
+  private String startOrResume() throws IOException {
+    if (checkpoint != null) {
+      log.info("Resuming upload " + checkpoint.uploadId() + " at byte " + checkpoint.offset());
+      return checkpoint.uploadId();
+    }
+    InitiateMultipartUploadResult initiateUploadResult = initiateMultipartUpload();
+    log.info(initiateUploadResult.toString());
+    String uploadId = initiateUploadResult.getUploadId();
+    if (arguments.checkpoint().isPresent()) {
+      checkpoint = Checkpoint.start(arguments.checkpoint().get(), uploadId,
+          arguments.vaultName(), partSize, inputSize(), inputModified());
+    }
+    return uploadId;
+  }
+
   private InitiateMultipartUploadResult initiateMultipartUpload() {
     // Initiate
     InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest()
@@ -93,99 +133,363 @@ public final class ArchiveMPU implements Closeable {
         .withArchiveDescription(arguments.description())
         .withPartSize(Integer.toString(partSize));
 
-    return client().initiateMultipartUpload(request);
+    try (ClientPool.Lease lease = clients.lease()) {
+      return lease.client().initiateMultipartUpload(request);
+    }
+  }
+
+  private boolean fromStdin() {
+    return arguments.fileToUpload().toString().equals("-");
+  }
+
+  private long inputSize() {
+    return fromStdin() ? -1 : arguments.fileToUpload().toFile().length();
+  }
+
+  private long inputModified() {
+    return fromStdin() ? -1 : arguments.fileToUpload().toFile().lastModified();
+  }
+
+  private int partSize() {
+    if (arguments.partSize().isPresent()) {
+      return PartSizes.fromMegabytes(arguments.partSize().getAsInt());
+    }
+    return PartSizes.choose(
+        fromStdin() ? -1 : arguments.fileToUpload().toFile().length(),
+        maxConcurrency(),
+        arguments.maxMemory().isPresent() ?
+            arguments.maxMemory().getAsInt() * 1048576L :
+            Runtime.getRuntime().maxMemory() / 2);
   }
 
-  private String uploadParts(
+  private UploadedParts uploadParts(
       String uploadId) throws
       AmazonClientException,
       IOException, InterruptedException {
-    long currentPosition = 0;
-    List<UploadPartCommand> commands = new LinkedList<>();
+    try (FileChannel directChannel = openDirect()) {
+      BufferPool buffers = new BufferPool(
+          memoryBudget,
+          partSize,
+          arguments.directBuffers(),
+          directChannel != null ? directBlockSize : 1);
+      return uploadParts(uploadId, buffers, directChannel);
+    }
+  }
 
-    File file = arguments.fileToUpload().toFile();
+  /**
+   * @param directChannel the file opened for direct reads, or {@code null}
+   */
+  private UploadedParts uploadParts(
+      String uploadId,
+      BufferPool buffers,
+      FileChannel directChannel) throws
+      AmazonClientException,
+      IOException, InterruptedException {
+    int maxConcurrency = maxConcurrency();
+    if (readMode() != ReadMode.MMAP && buffers.capacity() < maxConcurrency) {
+      // more uploads would only wait for a buffer
+      log.info("The memory budget holds " + buffers.capacity() + " parts, " +
+          "so at most as many are uploaded at the same time");
+      maxConcurrency = buffers.capacity();
+    }
+    AdaptiveConcurrency concurrency = new AdaptiveConcurrency(initialConcurrency,
+        Math.min(maxConcurrency, arguments.minConcurrency().orElse(1)),
+        maxConcurrency);
+    try (AsyncPartUploader uploader = openAsync();
+         UploadPipeline pipeline = new UploadPipeline(concurrency,
+             hedging(),
+             arguments.partsInFlight().orElse(2 * maxConcurrency()),
+             partSize,
+             checkpoint,
+             uploader)) {
+      UploadedParts parts = fromStdin() ?
+          uploadStream(pipeline, buffers, uploadId) :
+          uploadFile(pipeline, buffers, directChannel, uploadId);
+      if (readMode() != ReadMode.MMAP) {
+        buffers.logStats();
+      }
+      return parts;
+    }
+  }
 
-    AtomicInteger numParts = new AtomicInteger();
-    AtomicInteger completed = new AtomicInteger();
-
-    try (InputStream fileToUpload = new FileInputStream(file)) {
-      while (currentPosition < file.length()) {
-        UploadPartCommand command = uploadPart(numParts,
-            completed,
-            uploadId,
-            currentPosition,
-            fileToUpload);
-        if (command.length() == 0) {
-          break;
-        }
-        commands.add(command);
-        currentPosition += command.length();
+  private long memoryBudget() {
+    long wanted = arguments.maxMemory().isPresent() ?
+        arguments.maxMemory().getAsInt() * 1048576L :
+        (long) Math.max(2 * maxConcurrency(), maxConcurrency() + arguments.prefetch().orElse(0)) * partSize;
+    if (arguments.directBuffers()) {
+      return wanted;
+    }
+    // Buffers are only allocated when the concurrency grows, but they must fit into the heap then,
+    // next to everything else; the concurrency and the prefetch depth are limited to what fits.
+    long heap = Runtime.getRuntime().maxMemory() / 2;
+    if (heap < partSize) {
+      throw new IllegalArgumentException("A part of " + partSize / 1048576 + " MB does not fit into " +
+          "the heap of " + Runtime.getRuntime().maxMemory() / 1048576 + " MB, run java with a larger -Xmx, " +
+          "or pass a smaller --part-size or --direct-buffers");
+    }
+    if (wanted > heap && arguments.maxMemory().isPresent()) {
+      log.warn("--max-memory is more than half of the heap, using " + heap / 1048576 + " MB");
+    }
+    return Math.min(wanted, heap);
+  }
+
+  private int maxConcurrency() {
+    int max = arguments.maxConcurrency().orElse(16);
+    if (max < 1) {
+      throw new IllegalArgumentException("Maximum concurrency must be at least 1: " + max);
+    }
+    return max;
+  }
+
+  /**
+   * @return the maximum prefetch depth, or zero if parts are read by the upload threads
+   */
+  private int prefetchDepth() {
+    if (readMode() == ReadMode.MMAP || fromStdin()) {
+      return 0;
+    }
+    int depth = arguments.prefetch().orElse(0);
+    // Each upload thread may need a buffer of its own to retry a part,
+    // so they must not all be taken by prefetched parts.
+    int available = (int) Math.min(Integer.MAX_VALUE, memoryBudget / partSize) - maxConcurrency();
+    if (depth > available) {
+      log.warn("Memory budget allows a prefetch depth of " + Math.max(0, available) + " only");
+      return Math.max(0, available);
+    }
+    return depth;
+  }
+
+  private ReadMode readMode() {
+    return fromStdin() ?
+        ReadMode.POSITIONAL :
+        arguments.readMode().orElse(ReadMode.POSITIONAL);
+  }
+
+  /**
+   * Probes for direct reads once, before any buffer is allocated:
+   * both the channel and the block size must be available.
+   *
+   * @return a channel for direct reads, or {@code null} if direct reads are not
+   * requested or not supported; in that case parts are read with positional reads
+   */
+  private FileChannel openDirect() throws IOException {
+    if (readMode() != ReadMode.DIRECT) {
+      return null;
+    }
+    FileChannel channel = null;
+    try {
+      channel = DirectIO.open(arguments.fileToUpload());
+      directBlockSize = DirectIO.blockSize(arguments.fileToUpload());
+      return channel;
+    } catch (UnsupportedOperationException | IOException e) {
+      if (channel != null) {
+        channel.close();
       }
+      log.warn(e.getMessage() + ", falling back to positional reads");
+      return null;
     }
+  }
 
-    long totalLength =
-        commands.stream().mapToInt(UploadPartCommand::length).sum();
+  /**
+   * @return the hedging policy, or {@code null} if hedging is turned off
+   */
+  private Hedging hedging() {
+    // off by default, because a hedge is a request that the concurrency limit does not count
+    int percentile = arguments.hedgePercentile().orElse(0);
+    return percentile == 0 ? null : new Hedging(percentile);
+  }
+
+  /**
+   * @return the uploader for async uploads, or {@code null} if they are not
+   * requested or not supported
+   */
+  private AsyncPartUploader openAsync() {
+    if (!arguments.async()) {
+      return null;
+    }
+    AsyncPartUploader uploader = AsyncUploaders.create(arguments);
+    if (uploader == null) {
+      log.warn("Async uploads need java 21 or newer, falling back to a thread per upload");
+    }
+    return uploader;
+  }
 
-    if (totalLength != file.length()) {
-      throw new IllegalStateException("File size is " + file.length() +
-          " but sum of parts is " + totalLength);
+  private UploadedParts uploadFile(
+      UploadPipeline pipeline,
+      BufferPool buffers,
+      FileChannel directChannel,
+      String uploadId) throws IOException, InterruptedException {
+    long currentPosition = pipeline.resumeOffset();
+    File file = arguments.fileToUpload().toFile();
+    long fileLength = file.length();
+    pipeline.numParts.set((int) ((fileLength + partSize - 1) / partSize));
+    if (pipeline.numParts.get() > PartSizes.maxParts) {
+      throw new IllegalArgumentException("Part size " + partSize + " is too small, the upload would need " +
+          pipeline.numParts.get() + " parts");
     }
 
-    List<byte[]> binaryChecksums = commands.stream()
-        .map(command -> BinaryUtils.fromHex(command.checksum))
-        .collect(Collectors.toList());
-    numParts.set(binaryChecksums.size());
-    ExecutorService pool = Executors.newFixedThreadPool(threads);
-    List<Future<UploadMultipartPartResult>> futures = pool.invokeAll(commands);
-    boolean success = futures.stream().allMatch(f -> {
+    String checksum;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+         LeafHashCache cache = arguments.hashCache().isPresent() ?
+             LeafHashCache.open(arguments.hashCache().get(), arguments.fileToUpload()) :
+             null) {
+      PartSource fileSource = readMode() == ReadMode.MMAP ?
+          new MappedFile(channel, fileLength) :
+          directChannel != null ?
+              new ChannelPartSource(directChannel, buffers, directBlockSize) :
+              new ChannelPartSource(channel, buffers);
+      if (cache != null) {
+        fileSource = new CachedLeavesSource(fileSource, cache);
+      }
+      int prefetchDepth = prefetchDepth();
+      Prefetcher prefetcher = prefetchDepth == 0 ?
+          null :
+          new Prefetcher(fileSource, currentPosition, fileLength, partSize, pipeline.concurrency::limit, prefetchDepth);
+      PartSource source = prefetcher == null ? fileSource : prefetcher;
       try {
-        f.get();
-        return true;
-      } catch (Exception e) {
-        log.error("Error", e);
-        return false;
+        while (currentPosition < fileLength && !pipeline.failed()) {
+          int length = (int) Math.min(partSize, fileLength - currentPosition);
+          pipeline.submit(new UploadPartCommand(this,
+              pipeline.numParts,
+              pipeline.completed,
+              pipeline.concurrency,
+              pipeline.hedging,
+              source,
+              currentPosition,
+              length,
+              uploadId));
+          currentPosition += length;
+        }
+        checksum = pipeline.awaitChecksum();
+      } finally {
+        // the channel must stay open until no part is read any more
+        pipeline.close();
+        if (prefetcher != null) {
+          prefetcher.close();
+        }
       }
-    });
-    pool.shutdown();
-    if (success) {
-      return TreeHashGenerator.calculateTreeHash(binaryChecksums);
-    } else {
-      throw new IllegalStateException("Some uploads have failed");
+      if (currentPosition != fileLength) {
+        throw new IllegalStateException("File size is " + fileLength +
+            " but sum of parts is " + currentPosition);
+      }
+      return new UploadedParts(fileLength, checksum);
     }
   }
 
-  private UploadPartCommand uploadPart(
-      AtomicInteger numParts,
-      AtomicInteger completed,
-      final String uploadId,
-      final long currentPosition,
-      final InputStream fileToUpload) throws IOException {
-    byte[] buffer = new byte[partSize];
-    int read = fileToUpload.read(buffer, 0, buffer.length);
-    if (read < 0) {
-      return new UploadPartCommand(this, numParts, completed, currentPosition, null, uploadId);
+  /**
+   * Uploads an input of unknown length. Each part is uploaded as soon as it is full,
+   * and the archive size and checksum are known when the input ends.
+   */
+  private UploadedParts uploadStream(
+      UploadPipeline pipeline,
+      BufferPool buffers,
+      String uploadId) throws IOException, InterruptedException {
+    long currentPosition = pipeline.resumeOffset();
+    FileChannel in = new FileInputStream(FileDescriptor.in).getChannel();
+    if (currentPosition > 0) {
+      try {
+        in.position(currentPosition);
+      } catch (IOException e) {
+        throw new IllegalStateException("Can not resume, the input can not skip to byte " +
+            currentPosition + ": " + e.getMessage(), e);
+      }
+    }
+    while (!pipeline.failed()) {
+      ByteBuffer buffer = buffers.acquire();
+      buffer.limit(partSize);
+      while (buffer.hasRemaining() && in.read(buffer) >= 0) {
+        // keep reading until the part is full or the input ends
+      }
+      buffer.flip();
+      if (!buffer.hasRemaining()) {
+        buffers.release(buffer);
+        break;
+      }
+      int length = buffer.remaining();
+      if (pipeline.numParts.incrementAndGet() > PartSizes.maxParts) {
+        buffers.release(buffer);
+        throw new IllegalStateException("The input needs more than " + PartSizes.maxParts +
+            " parts of " + partSize + " bytes, try a larger --part-size");
+      }
+      pipeline.submit(new UploadPartCommand(this,
+          pipeline.numParts,
+          pipeline.completed,
+          pipeline.concurrency,
+          pipeline.hedging,
+          new StreamedPart(buffer),
+          currentPosition,
+          length,
+          uploadId), () -> buffers.release(buffer));
+      currentPosition += length;
+    }
+    if (currentPosition == 0) {
+      throw new IllegalStateException("The input is empty");
+    }
+    String checksum = pipeline.awaitChecksum();
+    log.info("Archive size: " + currentPosition);
+    return new UploadedParts(currentPosition, checksum);
+  }
+
+  /**
+   * Gives up the upload, so that glacier does not keep its parts.
+   * An upload with a checkpoint is kept, so that a later run can continue it.
+   */
+  private void abort(String uploadId) {
+    if (checkpoint != null) {
+      log.info("Keeping upload " + uploadId + ", run again with the same --checkpoint to continue it");
+      return;
+    }
+    log.info("Aborting upload " + uploadId);
+    AbortMultipartUploadRequest request = new AbortMultipartUploadRequest()
+        .withVaultName(arguments.vaultName())
+        .withUploadId(uploadId);
+    try (ClientPool.Lease lease = clients.lease()) {
+      lease.client().abortMultipartUpload(request);
+    } catch (RuntimeException e) {
+      log.warn("Could not abort upload " + uploadId + ": " + e.getMessage());
     }
-    byte[] bytesRead = Arrays.copyOf(buffer, read);
-    return new UploadPartCommand(this, numParts, completed, currentPosition, bytesRead, uploadId);
   }
 
   private CompleteMultipartUploadResult completeMultiPartUpload(
       String uploadId,
-      String checksum) {
-
-    File file = arguments.fileToUpload().toFile();
+      UploadedParts parts) {
 
     CompleteMultipartUploadRequest compRequest = new CompleteMultipartUploadRequest()
         .withVaultName(arguments.vaultName())
         .withUploadId(uploadId)
-        .withChecksum(checksum)
-        .withArchiveSize(String.valueOf(file.length()));
+        .withChecksum(parts.checksum)
+        .withArchiveSize(String.valueOf(parts.archiveSize));
+
+    try (ClientPool.Lease lease = clients.lease()) {
+      return lease.client().completeMultipartUpload(compRequest);
+    }
+  }
 
-    return client().completeMultipartUpload(compRequest);
+  /**
+   * @throws IllegalStateException if glacier has stored an archive with a different checksum;
+   *                               the archive exists at this point, so it is reported and not aborted
+   */
+  private static void verifyArchive(UploadedParts parts, CompleteMultipartUploadResult result) {
+    if (!TreeHashes.matches(BinaryUtils.fromHex(parts.checksum), result.getChecksum())) {
+      throw new IllegalStateException("Archive checksum mismatch: expected " + parts.checksum +
+          ", glacier returned " + result.getChecksum() + " for archive " + result.getArchiveId() +
+          ", delete the archive and upload it again");
+    }
+  }
+
+  private static final class UploadedParts {
+
+    final long archiveSize;
+    final String checksum;
+
+    UploadedParts(long archiveSize, String checksum) {
+      this.archiveSize = archiveSize;
+      this.checksum = checksum;
+    }
   }
 
   @Override
   public void close() {
-    client().shutdown();
+    clients.close();
   }
 }
@@ -4,6 +4,8 @@ import net.jbock.CommandLineArguments;
 import net.jbock.Parameter;
 
 import java.nio.file.Path;
+import java.util.Optional;
+import java.util.OptionalInt;
 
 /**
  * I have not used it in a while.
@@ -16,7 +18,8 @@ abstract class Arguments {
 
   /**
    * file to upload
-   * absolute or relative path
+   * absolute or relative path,
+   * or '-' to read from standard input
    *
    * @return FILE
    */
@@ -58,4 +61,124 @@ abstract class Arguments {
    */
   @Parameter(longName = "signing-region")
   abstract String signingRegion();
+
+  /**
+   * maximum number of parts that are queued
+   * but not yet uploaded, default: twice the
+   * maximum concurrency
+   *
+   * @return NUMBER
+   */
+  @Parameter(longName = "parts-in-flight", optional = true)
+  abstract OptionalInt partsInFlight();
+
+  /**
+   * lower bound for the number of parts that are
+   * uploaded at the same time, default: 1
+   *
+   * @return NUMBER
+   */
+  @Parameter(longName = "min-concurrency", optional = true)
+  abstract OptionalInt minConcurrency();
+
+  /**
+   * upper bound for the number of parts that are
+   * uploaded at the same time; starting at 4, the number
+   * grows while the throughput improves, default: 16
+   *
+   * @return NUMBER
+   */
+  @Parameter(longName = "max-concurrency", optional = true)
+  abstract OptionalInt maxConcurrency();
+
+  /**
+   * send a part a second time if its upload takes
+   * longer than this percentile of the parts before it;
+   * the first upload to succeed wins; hedges are sent on top of
+   * the concurrency limit, so they are off unless a percentile is given,
+   * default: 0 (off)
+   *
+   * @return PERCENTILE
+   */
+  @Parameter(longName = "hedge-percentile", optional = true)
+  abstract OptionalInt hedgePercentile();
+
+  /**
+   * how parts are read from the file:
+   * 'positional' (default) reads each part in its upload thread,
+   * 'mmap' memory maps the file instead of copying parts to the heap,
+   * 'direct' bypasses the page cache (linux, java 10 or newer)
+   *
+   * @return MODE
+   */
+  @Parameter(longName = "read-mode", optional = true, mappedBy = ReadMode.Mapper.class)
+  abstract Optional<ReadMode> readMode();
+
+  /**
+   * send parts with a non-blocking http client,
+   * so that a few threads drive all uploads
+   * (java 21 or newer)
+   *
+   * @return ASYNC
+   */
+  @Parameter(longName = "async", flag = true)
+  abstract boolean async();
+
+  /**
+   * memory budget for part buffers in MB,
+   * default: two parts per concurrent upload,
+   * never more than half of the heap unless the buffers are direct
+   *
+   * @return MB
+   */
+  @Parameter(longName = "max-memory", optional = true)
+  abstract OptionalInt maxMemory();
+
+  /**
+   * allocate part buffers outside of the heap
+   *
+   * @return DIRECT
+   */
+  @Parameter(longName = "direct-buffers", flag = true)
+  abstract boolean directBuffers();
+
+  /**
+   * part size in MB, a power of two between 1 and 1024,
+   * default: chosen from the file size and memory budget
+   *
+   * @return MB
+   */
+  @Parameter(longName = "part-size", optional = true)
+  abstract OptionalInt partSize();
+
+  /**
+   * read parts ahead of the upload threads on a separate
+   * thread, keeping at most this many parts ready,
+   * default: parts are read by the upload threads
+   *
+   * @return NUMBER
+   */
+  @Parameter(longName = "prefetch", optional = true)
+  abstract OptionalInt prefetch();
+
+  /**
+   * file that keeps the leaf hashes of the upload,
+   * so that a later upload of the same unchanged file
+   * does not need to hash it again
+   *
+   * @return FILE
+   */
+  @Parameter(longName = "hash-cache", optional = true)
+  abstract Optional<Path> hashCache();
+
+  /**
+   * file that records the progress of the upload;
+   * if it exists, the upload that it belongs to is continued
+   * after the parts that were already uploaded,
+   * which needs an input that can be skipped ahead
+   *
+   * @return FILE
+   */
+  @Parameter(longName = "checkpoint", optional = true)
+  abstract Optional<Path> checkpoint();
 }
@@ -0,0 +1,26 @@
+package ich.bins;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends part uploads without blocking a thread per upload.
+ * Instances are created by {@link AsyncUploaders}, only on jvms that have
+ * a non-blocking http client.
+ */
+interface AsyncPartUploader extends Closeable {
+
+  /**
+   * Sends a part. The body must not be released before the returned future is done.
+   * Cancelling the returned future aborts the request.
+   *
+   * @param payloadHash the hex encoded sha-256 of the body, or {@code null}
+   * @return the tree hash that glacier computed, hex encoded
+   */
+  CompletableFuture<String> upload(String uploadId, String contentRange,
+                                   String checksum, String payloadHash, ByteBuffer body);
+
+  @Override
+  void close();
+}
@@ -0,0 +1,21 @@
+package ich.bins;
+
+/**
+ * Creates the {@link AsyncPartUploader}, if this jvm can run one.
+ *
+ * <p>This version is used on jvms older than java 21, which have no non-blocking http client.
+ * The multi-release jar contains a version of this class from {@code src/main/java21}
+ * that sends parts with {@code java.net.http.HttpClient}.
+ */
+final class AsyncUploaders {
+
+  private AsyncUploaders() {
+  }
+
+  /**
+   * @return {@code null}, because this jvm has no non-blocking http client
+   */
+  static AsyncPartUploader create(Arguments arguments) {
+    return null;
+  }
+}
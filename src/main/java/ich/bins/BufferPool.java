@@ -0,0 +1,100 @@
+package ich.bins;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recycles part buffers, and never allocates more of them than the memory budget allows.
+ * When all buffers are in use, {@link #acquire()} blocks until one is released.
+ */
+final class BufferPool {
+
+  private static final Logger log = LoggerFactory.getLogger(BufferPool.class);
+
+  private final BlockingQueue<ByteBuffer> free = new LinkedBlockingQueue<>();
+  private final AtomicInteger allocated = new AtomicInteger();
+
+  private final int bufferSize;
+  private final int maxBuffers;
+  private final boolean direct;
+  private final int alignment;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong waits = new AtomicLong();
+  private final AtomicLong waitNanos = new AtomicLong();
+
+  BufferPool(long maxMemory, int bufferSize, boolean direct) {
+    this(maxMemory, bufferSize, direct, 1);
+  }
+
+  /**
+   * @param alignment if greater than one, the buffers are direct buffers
+   * whose address is a multiple of this number
+   */
+  BufferPool(long maxMemory, int bufferSize, boolean direct, int alignment) {
+    if (maxMemory < bufferSize) {
+      throw new IllegalArgumentException("Memory budget of " + maxMemory +
+          " bytes is smaller than one part (" + bufferSize + " bytes)");
+    }
+    this.bufferSize = bufferSize;
+    this.maxBuffers = (int) Math.min(Integer.MAX_VALUE, maxMemory / bufferSize);
+    this.direct = direct || alignment > 1;
+    this.alignment = alignment;
+  }
+
+  /**
+   * @return the number of buffers that the memory budget holds
+   */
+  int capacity() {
+    return maxBuffers;
+  }
+
+  /**
+   * @return a cleared buffer with a capacity of at least {@code bufferSize}
+   */
+  ByteBuffer acquire() throws InterruptedException {
+    ByteBuffer buffer = free.poll();
+    if (buffer != null) {
+      hits.incrementAndGet();
+      return buffer;
+    }
+    for (int n = allocated.get(); n < maxBuffers; n = allocated.get()) {
+      if (allocated.compareAndSet(n, n + 1)) {
+        misses.incrementAndGet();
+        if (alignment > 1) {
+          return DirectIO.allocateAligned(bufferSize, alignment);
+        }
+        return direct ?
+            ByteBuffer.allocateDirect(bufferSize) :
+            ByteBuffer.allocate(bufferSize);
+      }
+    }
+    long start = System.nanoTime();
+    buffer = free.take();
+    waits.incrementAndGet();
+    waitNanos.addAndGet(System.nanoTime() - start);
+    return buffer;
+  }
+
+  void release(ByteBuffer buffer) {
+    buffer.clear();
+    free.add(buffer);
+  }
+
+  void logStats() {
+    long requests = hits.get() + misses.get() + waits.get();
+    log.info(String.format("Buffer pool: %d buffers of %d bytes allocated (%s), " +
+            "%d requests, hit rate %.1f%%, %d waits, %d ms waiting",
+        allocated.get(), bufferSize, direct ? "direct" : "heap",
+        requests, requests == 0 ? 0 : 100.0 * (hits.get() + waits.get()) / requests,
+        waits.get(), TimeUnit.NANOSECONDS.toMillis(waitNanos.get())));
+  }
+}
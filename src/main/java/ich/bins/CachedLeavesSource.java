@@ -0,0 +1,50 @@
+package ich.bins;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Takes the leaf digests of a part from the hash cache when they are known,
+ * so the part is only read and not hashed. Otherwise the digests that are
+ * computed during the read are added to the cache.
+ * Cached digests that glacier does not agree with are dropped, see {@link #invalidate}.
+ */
+final class CachedLeavesSource implements PartSource {
+
+  private final PartSource source;
+  private final LeafHashCache cache;
+
+  CachedLeavesSource(PartSource source, LeafHashCache cache) {
+    this.source = source;
+    this.cache = cache;
+  }
+
+  @Override
+  public ByteBuffer read(long position, int length, LeafDigests leaves)
+      throws IOException, InterruptedException {
+    if (leaves == null) {
+      return source.read(position, length, null);
+    }
+    long firstLeaf = position / TreeHashes.leafSize;
+    int count = (length + TreeHashes.leafSize - 1) / TreeHashes.leafSize;
+    if (cache.lookup(firstLeaf, count, leaves)) {
+      return source.read(position, length, null);
+    }
+    LeafDigests computed = LeafDigests.forLength(length);
+    ByteBuffer buffer = source.read(position, length, computed);
+    cache.store(firstLeaf, computed);
+    leaves.addAll(computed);
+    return buffer;
+  }
+
+  @Override
+  public void release(ByteBuffer buffer) {
+    source.release(buffer);
+  }
+
+  @Override
+  public void invalidate(long position, int length) {
+    cache.clear(position / TreeHashes.leafSize, (length + TreeHashes.leafSize - 1) / TreeHashes.leafSize);
+    source.invalidate(position, length);
+  }
+}
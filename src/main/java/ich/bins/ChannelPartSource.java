@@ -0,0 +1,85 @@
+package ich.bins;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * Reads each part with positional reads into a pooled buffer, so that
+ * several threads can read from the same channel concurrently.
+ * If the channel was opened for direct reads, each read is rounded up to the
+ * block size; the part offsets are multiples of 1 MB, so they are always aligned.
+ */
+final class ChannelPartSource implements PartSource {
+
+  private final FileChannel channel;
+  private final BufferPool pool;
+  private final int blockSize;
+
+  ChannelPartSource(FileChannel channel, BufferPool pool) {
+    this(channel, pool, 1);
+  }
+
+  ChannelPartSource(FileChannel channel, BufferPool pool, int blockSize) {
+    this.channel = channel;
+    this.pool = pool;
+    this.blockSize = blockSize;
+  }
+
+  @Override
+  public ByteBuffer read(long position, int length, LeafDigests leaves)
+      throws IOException, InterruptedException {
+    ByteBuffer buffer = pool.acquire();
+    MessageDigest digest = leaves == null ? null : TreeHashes.sha256();
+    MessageDigest payload = leaves == null || length <= TreeHashes.leafSize ? null : TreeHashes.sha256();
+    try {
+      // Read one leaf at a time, and hash it while it is still in the cpu cache;
+      // the linear hash of the part for request signing is computed in the same pass.
+      for (int leafStart = 0; leafStart < length; leafStart += TreeHashes.leafSize) {
+        int leafEnd = Math.min(length, leafStart + TreeHashes.leafSize);
+        buffer.limit(Math.min(buffer.capacity(), roundUp(leafEnd)));
+        while (buffer.position() < leafEnd) {
+          int n = channel.read(buffer, position + buffer.position());
+          if (n < 0) {
+            throw new EOFException("Unexpected end of file at position " +
+                (position + buffer.position()));
+          }
+        }
+        // a rounded up read may have returned bytes that belong to the next part
+        buffer.position(leafEnd);
+        if (digest != null) {
+          ByteBuffer leaf = buffer.duplicate();
+          leaf.flip();
+          leaf.position(leafStart);
+          TreeHashes.digestLeaf(digest, payload, leaf, leaves);
+        }
+      }
+      if (payload != null) {
+        leaves.setPayloadHash(payload);
+      }
+    } catch (IOException | RuntimeException e) {
+      pool.release(buffer);
+      throw e;
+    } finally {
+      if (digest != null) {
+        TreeHashes.release(digest);
+      }
+      if (payload != null) {
+        TreeHashes.release(payload);
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private int roundUp(int n) {
+    return (n + blockSize - 1) / blockSize * blockSize;
+  }
+
+  @Override
+  public void release(ByteBuffer buffer) {
+    pool.release(buffer);
+  }
+}
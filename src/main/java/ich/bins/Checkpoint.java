@@ -0,0 +1,201 @@
+package ich.bins;
+
+import com.amazonaws.util.BinaryUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers how far an upload has come, so that a later run can continue it
+ * instead of starting over.
+ *
+ * <p>The state is the upload id, and the longest run of uploaded parts from the start
+ * of the input: its length, and the nodes of the tree hash over it that are still
+ * waiting for a sibling. There is at most one node per level of the tree, so the file
+ * stays small even for a very large input. A continued run seeds the archive tree hash
+ * with these nodes, and skips the bytes before the offset without reading them.
+ *
+ * <p>The file is written at most once a second, to a temporary file
+ * that replaces the previous one.
+ */
+final class Checkpoint {
+
+  private static final Logger log = LoggerFactory.getLogger(Checkpoint.class);
+
+  private static final long interval = TimeUnit.SECONDS.toNanos(1);
+
+  private final Path path;
+  private final String uploadId;
+  private final String vaultName;
+  private final int partSize;
+  // size and last modified time of the input file, or -1 for standard input
+  private final long inputSize;
+  private final long inputModified;
+
+  // guarded by this
+  private long offset;
+  private final TreeHashAccumulator prefix = new TreeHashAccumulator();
+  private final Map<Long, byte[]> waiting = new TreeMap<>();
+  private long lastSave;
+  private boolean complete;
+
+  private Checkpoint(Path path, String uploadId, String vaultName, int partSize,
+                     long inputSize, long inputModified) {
+    this.path = path;
+    this.uploadId = uploadId;
+    this.vaultName = vaultName;
+    this.partSize = partSize;
+    this.inputSize = inputSize;
+    this.inputModified = inputModified;
+    this.lastSave = System.nanoTime() - interval;
+  }
+
+  /**
+   * Starts a checkpoint for a new upload, and writes it right away,
+   * so that the upload id is not lost even if no part is ever uploaded.
+   */
+  static Checkpoint start(Path path, String uploadId, String vaultName, int partSize,
+                          long inputSize, long inputModified) throws IOException {
+    Checkpoint checkpoint = new Checkpoint(path, uploadId, vaultName, partSize, inputSize, inputModified);
+    checkpoint.save();
+    return checkpoint;
+  }
+
+  /**
+   * @return the checkpoint that was written by an earlier run, or {@code null} if there is none
+   */
+  static Checkpoint load(Path path) throws IOException {
+    if (!Files.exists(path)) {
+      return null;
+    }
+    Properties properties = new Properties();
+    try (InputStream in = Files.newInputStream(path)) {
+      properties.load(in);
+    }
+    Checkpoint checkpoint = new Checkpoint(path,
+        properties.getProperty("uploadId"),
+        properties.getProperty("vaultName"),
+        Integer.parseInt(properties.getProperty("partSize")),
+        Long.parseLong(properties.getProperty("inputSize")),
+        Long.parseLong(properties.getProperty("inputModified")));
+    checkpoint.offset = Long.parseLong(properties.getProperty("offset"));
+    int nodes = Integer.parseInt(properties.getProperty("nodes"));
+    for (int i = 0; i < nodes; i++) {
+      String[] node = properties.getProperty("node." + i).split(" ");
+      checkpoint.prefix.add(new TreeHashAccumulator.Node(
+          Integer.parseInt(node[0]),
+          Long.parseLong(node[1]),
+          BinaryUtils.fromHex(node[2])));
+    }
+    return checkpoint;
+  }
+
+  /**
+   * @throws IllegalStateException if this checkpoint was written for a different upload
+   */
+  void verify(String vaultName, long inputSize, long inputModified) {
+    if (!this.vaultName.equals(vaultName) ||
+        this.inputSize != inputSize ||
+        this.inputModified != inputModified) {
+      throw new IllegalStateException("Checkpoint " + path + " belongs to a different upload, " +
+          "delete it to start over");
+    }
+  }
+
+  String uploadId() {
+    return uploadId;
+  }
+
+  int partSize() {
+    return partSize;
+  }
+
+  /**
+   * @return the number of bytes from the start of the input that have been uploaded
+   */
+  synchronized long offset() {
+    return offset;
+  }
+
+  /**
+   * @return the nodes of the tree hash over the first {@link #offset()} bytes
+   */
+  List<TreeHashAccumulator.Node> nodes() {
+    return prefix.nodes();
+  }
+
+  /**
+   * Called when a part has been uploaded. Parts may arrive in any order;
+   * a part after a gap waits until the gap is filled.
+   * A short last part is not added, because the nodes of its subtree are not full.
+   */
+  synchronized void partUploaded(long position, int length, byte[] root) {
+    if (length != partSize || complete) {
+      return;
+    }
+    waiting.put(position, root);
+    byte[] next;
+    long before = offset;
+    while ((next = waiting.remove(offset)) != null) {
+      prefix.add(Integer.numberOfTrailingZeros(partSize / TreeHashes.leafSize),
+          offset / partSize,
+          next,
+          partSize / TreeHashes.leafSize);
+      offset += partSize;
+    }
+    if (offset != before && System.nanoTime() - lastSave > interval) {
+      try {
+        save();
+      } catch (IOException e) {
+        log.warn("Could not write checkpoint " + path + ": " + e.getMessage());
+      }
+    }
+  }
+
+  private void save() throws IOException {
+    Properties properties = new Properties();
+    properties.setProperty("uploadId", uploadId);
+    properties.setProperty("vaultName", vaultName);
+    properties.setProperty("partSize", Integer.toString(partSize));
+    properties.setProperty("inputSize", Long.toString(inputSize));
+    properties.setProperty("inputModified", Long.toString(inputModified));
+    properties.setProperty("offset", Long.toString(offset));
+    List<TreeHashAccumulator.Node> nodes = prefix.nodes();
+    properties.setProperty("nodes", Integer.toString(nodes.size()));
+    for (int i = 0; i < nodes.size(); i++) {
+      TreeHashAccumulator.Node node = nodes.get(i);
+      properties.setProperty("node." + i,
+          node.height + " " + node.index + " " + BinaryUtils.toHex(node.root));
+    }
+    Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (OutputStream out = Files.newOutputStream(temp)) {
+      properties.store(out, "glacier upload checkpoint");
+    }
+    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    lastSave = System.nanoTime();
+  }
+
+  /**
+   * Deletes the checkpoint after the upload was completed.
+   */
+  synchronized void delete() {
+    complete = true;
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package ich.bins;
+
+import com.amazonaws.services.glacier.AmazonGlacier;
+
+import java.io.Closeable;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/**
+ * A few independent clients, handed out round robin without locking.
+ *
+ * <p>Each client is replaced after {@code clientLife} leases, because connections
+ * seemed to degrade over time when one client was used for the whole upload.
+ * A replaced client is shut down when its last lease is closed,
+ * so that no request is cut off. Threads that took it from its slot just before
+ * it was replaced may still lease it, so it can serve a few more than {@code clientLife}.
+ */
+final class ClientPool implements Closeable {
+
+  private final Supplier<AmazonGlacier> factory;
+  private final int clientLife;
+  private final AtomicReferenceArray<PooledClient> slots;
+  private final AtomicInteger next = new AtomicInteger();
+  // the clients that are not shut down yet, including replaced ones that are still in use
+  private final Set<PooledClient> live = ConcurrentHashMap.newKeySet();
+
+  ClientPool(Supplier<AmazonGlacier> factory, int size, int clientLife) {
+    this.factory = factory;
+    this.clientLife = clientLife;
+    this.slots = new AtomicReferenceArray<>(size);
+    for (int i = 0; i < size; i++) {
+      slots.set(i, newClient());
+    }
+  }
+
+  /**
+   * @return a client that will not be shut down before the lease is closed
+   */
+  Lease lease() {
+    while (true) {
+      int i = Math.floorMod(next.getAndIncrement(), slots.length());
+      PooledClient client = slots.get(i);
+      if (!client.acquire()) {
+        // it was just replaced, the slot holds a new client
+        continue;
+      }
+      if (client.uses.incrementAndGet() == clientLife) {
+        // only one lease sees this count, so only one thread replaces the client
+        slots.set(i, newClient());
+        client.retire();
+      }
+      return new Lease(client);
+    }
+  }
+
+  private PooledClient newClient() {
+    PooledClient client = new PooledClient(factory.get());
+    live.add(client);
+    return client;
+  }
+
+  /**
+   * Shuts down all clients, also those that are still in use.
+   */
+  @Override
+  public void close() {
+    live.forEach(PooledClient::shutdown);
+  }
+
+  static final class Lease implements Closeable {
+
+    private final PooledClient client;
+
+    private Lease(PooledClient client) {
+      this.client = client;
+    }
+
+    AmazonGlacier client() {
+      return client.client;
+    }
+
+    @Override
+    public void close() {
+      client.release();
+    }
+  }
+
+  private final class PooledClient {
+
+    private static final int retired = 1 << 30;
+
+    final AmazonGlacier client;
+    final AtomicInteger uses = new AtomicInteger();
+    // the number of open leases, plus retired once the client has been replaced
+    private final AtomicInteger state = new AtomicInteger();
+
+    PooledClient(AmazonGlacier client) {
+      this.client = client;
+    }
+
+    boolean acquire() {
+      while (true) {
+        int s = state.get();
+        if (s >= retired) {
+          return false;
+        }
+        if (state.compareAndSet(s, s + 1)) {
+          return true;
+        }
+      }
+    }
+
+    void release() {
+      if (state.decrementAndGet() == retired) {
+        shutdown();
+      }
+    }
+
+    void retire() {
+      if (state.getAndAdd(retired) == 0) {
+        shutdown();
+      }
+    }
+
+    void shutdown() {
+      if (live.remove(this)) {
+        client.shutdown();
+      }
+    }
+  }
+}
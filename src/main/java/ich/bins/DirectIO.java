@@ -0,0 +1,77 @@
+package ich.bins;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads that bypass the page cache.
+ * The required api only exists in java 10 and newer,
+ * so it is looked up reflectively to keep the java 8 build working.
+ */
+final class DirectIO {
+
+  private DirectIO() {
+  }
+
+  /**
+   * @return a channel opened with {@code O_DIRECT}
+   * @throws UnsupportedOperationException if the jvm or the file system does not support direct reads
+   */
+  static FileChannel open(Path path) throws IOException {
+    OpenOption direct;
+    try {
+      direct = (OpenOption) Class.forName("com.sun.nio.file.ExtendedOpenOption")
+          .getField("DIRECT")
+          .get(null);
+    } catch (ClassNotFoundException | NoSuchFieldException | IllegalAccessException e) {
+      throw new UnsupportedOperationException("This jvm does not support direct reads", e);
+    }
+    try {
+      return FileChannel.open(path, StandardOpenOption.READ, direct);
+    } catch (IOException | UnsupportedOperationException e) {
+      throw new UnsupportedOperationException("The file system does not support direct reads: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * @return the block size of the file system, which direct reads must be aligned to
+   * @throws UnsupportedOperationException if the jvm can not tell the block size
+   */
+  static int blockSize(Path path) throws IOException {
+    FileStore store = Files.getFileStore(path);
+    return (int) (long) invoke(FileStore.class, "getBlockSize", store);
+  }
+
+  /**
+   * @return a direct buffer of the given capacity, whose address is a multiple of {@code alignment}
+   */
+  static ByteBuffer allocateAligned(int capacity, int alignment) {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(capacity + alignment);
+    ByteBuffer aligned = (ByteBuffer) invoke(ByteBuffer.class, "alignedSlice", buffer, alignment);
+    aligned.limit(capacity);
+    return aligned.slice();
+  }
+
+  private static Object invoke(Class<?> type, String name, Object target, Object... args) {
+    try {
+      Class<?>[] parameterTypes = new Class<?>[args.length];
+      for (int i = 0; i < args.length; i++) {
+        parameterTypes[i] = args[i] instanceof Integer ? int.class : args[i].getClass();
+      }
+      Method method = type.getMethod(name, parameterTypes);
+      return method.invoke(target, args);
+    } catch (NoSuchMethodException | IllegalAccessException e) {
+      throw new UnsupportedOperationException("This jvm does not support direct reads", e);
+    } catch (InvocationTargetException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package ich.bins;
+
+import com.amazonaws.util.BinaryUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Computes the tree hash of local files, for example to compare them
+ * with the checksums in a vault inventory. Prints one line per file,
+ * in the format of {@code sha256sum}. The throughput is logged to standard error,
+ * so that standard output can be compared or piped as it is.
+ *
+ * <p>All files are hashed at the same time on one fork-join pool,
+ * so that many small files keep the disk as busy as one large file.
+ */
+final class Fingerprint {
+
+  private static final Logger log = LoggerFactory.getLogger(Fingerprint.class);
+
+  private final FingerprintArguments arguments;
+
+  private Fingerprint(FingerprintArguments arguments) {
+    this.arguments = arguments;
+  }
+
+  static void main(String[] args) throws IOException {
+    new Fingerprint(FingerprintArguments_Parser.create().parseOrExit(args)).run();
+  }
+
+  private void run() throws IOException {
+    ForkJoinPool pool = arguments.threads().isPresent() ?
+        new ForkJoinPool(arguments.threads().getAsInt()) :
+        ForkJoinPool.commonPool();
+    TreeHashEngine engine = new TreeHashEngine(pool);
+    long start = System.nanoTime();
+    List<CompletableFuture<Result>> results = new ArrayList<>();
+    for (Path file : arguments.files()) {
+      results.add(CompletableFuture.supplyAsync(() -> hash(engine, file), pool));
+    }
+    long total = 0;
+    try {
+      for (CompletableFuture<Result> future : results) {
+        Result result = join(future);
+        System.out.println(result.treeHash + "  " + result.file);
+        log.info(String.format("%s: %d bytes, %.1f MB/s",
+            result.file, result.size, megabytesPerSecond(result.size, result.nanos)));
+        total += result.size;
+      }
+    } finally {
+      if (pool != ForkJoinPool.commonPool()) {
+        pool.shutdown();
+      }
+    }
+    if (results.size() > 1) {
+      log.info(String.format("%d files: %d bytes, %.1f MB/s",
+          results.size(), total, megabytesPerSecond(total, System.nanoTime() - start)));
+    }
+  }
+
+  private static Result hash(TreeHashEngine engine, Path file) {
+    long start = System.nanoTime();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      byte[] root = engine.hash(channel, size);
+      return new Result(file, size, BinaryUtils.toHex(root), System.nanoTime() - start);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static Result join(CompletableFuture<Result> future) throws IOException {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) e.getCause()).getCause();
+      }
+      throw e;
+    }
+  }
+
+  private static double megabytesPerSecond(long bytes, long nanos) {
+    return bytes / 1048576.0 / Math.max(1, nanos) * 1e9;
+  }
+
+  private static final class Result {
+
+    final Path file;
+    final long size;
+    final String treeHash;
+    final long nanos;
+
+    Result(Path file, long size, String treeHash, long nanos) {
+      this.file = file;
+      this.size = size;
+      this.treeHash = treeHash;
+      this.nanos = nanos;
+    }
+  }
+}
@@ -0,0 +1,32 @@
+package ich.bins;
+
+import net.jbock.CommandLineArguments;
+import net.jbock.Parameter;
+import net.jbock.PositionalParameter;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.OptionalInt;
+
+@CommandLineArguments(
+    missionStatement = "Print the glacier tree hash of local files, without uploading them",
+    programName = "glacier-upload fingerprint")
+abstract class FingerprintArguments {
+
+  /**
+   * files to hash
+   *
+   * @return FILE
+   */
+  @PositionalParameter(position = 0, repeatable = true)
+  abstract List<Path> files();
+
+  /**
+   * number of threads that read and hash leaves,
+   * default: number of cores
+   *
+   * @return NUMBER
+   */
+  @Parameter(longName = "threads", optional = true)
+  abstract OptionalInt threads();
+}
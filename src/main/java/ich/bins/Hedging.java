@@ -0,0 +1,64 @@
+package ich.bins;
+
+import java.util.Arrays;
+
+/**
+ * Decides when a part upload is a straggler that should be sent a second time.
+ *
+ * <p>The time per byte of every part that was uploaded is recorded.
+ * An upload that has taken longer than a percentile of these times, scaled to its length,
+ * is hedged: the part is sent again on another connection, and the first upload
+ * that succeeds wins. Glacier accepts a range that is uploaded twice.
+ * Nothing is hedged before a few parts have completed, or sooner than {@link #minNanos}.
+ */
+final class Hedging {
+
+  private static final int minSamples = 8;
+  // an upload that takes less than this is not worth a second connection
+  private static final long minNanos = 1_000_000_000L;
+
+  private final int percentile;
+
+  // guarded by this
+  private double[] nanosPerByte = new double[64];
+  private int samples;
+  private double threshold = Double.MAX_VALUE;
+  private boolean stale;
+
+  /**
+   * @param percentile between 1 and 100
+   */
+  Hedging(int percentile) {
+    if (percentile < 1 || percentile > 100) {
+      throw new IllegalArgumentException("Hedge percentile must be between 1 and 100: " + percentile);
+    }
+    this.percentile = percentile;
+  }
+
+  /**
+   * Called when an upload of {@code bytes} has succeeded after {@code nanos}.
+   */
+  synchronized void uploaded(long nanos, int bytes) {
+    if (samples == nanosPerByte.length) {
+      nanosPerByte = Arrays.copyOf(nanosPerByte, 2 * samples);
+    }
+    nanosPerByte[samples++] = nanos / (double) bytes;
+    stale = true;
+  }
+
+  /**
+   * @return true if an upload of {@code bytes} that has been running for {@code nanos} should be hedged
+   */
+  synchronized boolean isStraggler(long nanos, int bytes) {
+    if (nanos < minNanos || samples < minSamples) {
+      return false;
+    }
+    if (stale) {
+      double[] sorted = Arrays.copyOf(nanosPerByte, samples);
+      Arrays.sort(sorted);
+      threshold = sorted[Math.min(samples - 1, (int) Math.ceil(samples * percentile / 100.0) - 1)];
+      stale = false;
+    }
+    return nanos > threshold * bytes;
+  }
+}
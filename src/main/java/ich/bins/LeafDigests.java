@@ -0,0 +1,176 @@
+package ich.bins;
+
+import com.amazonaws.util.BinaryUtils;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The digests of a run of 1 MB leaves, packed into one array.
+ * Digests are written straight into the array by {@link MessageDigest#digest(byte[], int, int)},
+ * so adding a leaf does not allocate.
+ */
+final class LeafDigests {
+
+  static final int digestLength = 32;
+
+  // scratch arrays for root(), shared by all threads like the digests of TreeHashes
+  private static final Queue<byte[]> scratch = new ConcurrentLinkedQueue<>();
+
+  private byte[] digests;
+  private int count;
+
+  // sha-256 of all bytes of the leaves, if it was computed while they were hashed
+  private byte[] payloadHash;
+  // true if a digest was copied in, such as from the hash cache, and not computed from the bytes
+  private boolean copied;
+
+  LeafDigests(int capacity) {
+    this.digests = new byte[Math.max(1, capacity) * digestLength];
+  }
+
+  /**
+   * @return an empty instance with room for the leaves of {@code length} bytes
+   */
+  static LeafDigests forLength(long length) {
+    return new LeafDigests((int) ((length + TreeHashes.leafSize - 1) / TreeHashes.leafSize));
+  }
+
+  int count() {
+    return count;
+  }
+
+  /**
+   * @return a copy of the digest of leaf {@code index}
+   */
+  byte[] get(int index) {
+    return Arrays.copyOfRange(digests, index * digestLength, (index + 1) * digestLength);
+  }
+
+  /**
+   * Completes the digest, and stores the result as the next leaf.
+   */
+  void add(MessageDigest digest) {
+    set(reserve(1), digest);
+  }
+
+  /**
+   * Stores a copy of {@code digest} as the next leaf.
+   * A single leaf that was added this way has no payload hash.
+   */
+  void add(byte[] digest) {
+    copied = true;
+    // reserve first, it may replace the array
+    int index = reserve(1);
+    System.arraycopy(digest, 0, digests, index * digestLength, digestLength);
+  }
+
+  /**
+   * Makes room for {@code n} more leaves, to be filled in with {@link #set}.
+   *
+   * @return the index of the first new leaf
+   */
+  int reserve(int n) {
+    int index = count;
+    payloadHash = null;
+    ensureCapacity(count + n);
+    count += n;
+    return index;
+  }
+
+  /**
+   * Completes the digest, and stores the result as leaf {@code index}.
+   * Different indexes may be set from different threads.
+   */
+  void set(int index, MessageDigest digest) {
+    try {
+      digest.digest(digests, index * digestLength, digestLength);
+    } catch (DigestException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  void addAll(LeafDigests other) {
+    boolean empty = count == 0;
+    int index = reserve(other.count);
+    System.arraycopy(other.digests, 0, digests, index * digestLength, other.count * digestLength);
+    if (empty) {
+      payloadHash = other.payloadHash;
+    }
+    copied |= other.copied;
+  }
+
+  /**
+   * Completes the digest, which has seen all bytes of the leaves, and keeps the result
+   * as their linear hash. Must be called after the last leaf was added.
+   */
+  void setPayloadHash(MessageDigest digest) {
+    payloadHash = digest.digest();
+  }
+
+  /**
+   * @return the sha-256 of all bytes of the leaves, or null if it was not computed from them;
+   * for a single leaf that was hashed, this is the digest of the leaf
+   */
+  byte[] payloadHash() {
+    if (copied) {
+      // a cached digest may be stale, the signer has to hash the bytes that are sent
+      return null;
+    }
+    return count == 1 ? get(0) : payloadHash;
+  }
+
+  /**
+   * @return the root of the tree over these leaves, as a hex string
+   */
+  String treeHash() {
+    return BinaryUtils.toHex(root());
+  }
+
+  /**
+   * Reduces the tree level by level in a pooled scratch array.
+   *
+   * @return the root of the tree over these leaves
+   */
+  byte[] root() {
+    if (count == 0) {
+      throw new IllegalStateException("No leaves");
+    }
+    byte[] nodes = scratch.poll();
+    if (nodes == null || nodes.length < count * digestLength) {
+      // a smaller array is dropped, the pool keeps the larger one
+      nodes = new byte[digests.length];
+    }
+    System.arraycopy(digests, 0, nodes, 0, count * digestLength);
+    MessageDigest digest = TreeHashes.sha256();
+    try {
+      for (int n = count; n > 1; n = (n + 1) / 2) {
+        for (int i = 0; i < n / 2; i++) {
+          digest.update(nodes, 2 * i * digestLength, 2 * digestLength);
+          try {
+            digest.digest(nodes, i * digestLength, digestLength);
+          } catch (DigestException e) {
+            throw new IllegalStateException(e);
+          }
+        }
+        if (n % 2 == 1) {
+          // the odd node moves up unchanged
+          System.arraycopy(nodes, (n - 1) * digestLength, nodes, n / 2 * digestLength, digestLength);
+        }
+      }
+      return Arrays.copyOf(nodes, digestLength);
+    } finally {
+      TreeHashes.release(digest);
+      scratch.offer(nodes);
+    }
+  }
+
+  private void ensureCapacity(int leaves) {
+    if (leaves * digestLength > digests.length) {
+      digests = Arrays.copyOf(digests, Math.max(leaves, 2 * count) * digestLength);
+    }
+  }
+}
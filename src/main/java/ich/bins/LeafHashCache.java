@@ -0,0 +1,164 @@
+package ich.bins;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Keeps the 1 MB leaf digests of a file in a cache file, so that a later run
+ * for the same file does not have to hash it again.
+ *
+ * <p>The cache file starts with a header of {@value #headerSize} bytes:
+ * <pre>
+ *   magic "GTHC", format version (int),
+ *   file size (long), last modified millis (long),
+ *   sha-256 of the absolute path and file key (32 bytes), padding
+ * </pre>
+ * followed by 32 bytes per leaf. A leaf that has not been hashed yet is all zeros.
+ * If the header does not match the file, the cache is started over.
+ * The cache file is memory mapped, so a lookup only touches the pages of the leaves it needs.
+ */
+final class LeafHashCache implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(LeafHashCache.class);
+
+  private static final int magic = 0x47544843; // "GTHC"
+  private static final int version = 1;
+  private static final int headerSize = 64;
+
+  private static final byte[] missing = new byte[LeafDigests.digestLength];
+
+  private final FileChannel channel;
+  private final MappedByteBuffer leaves;
+  private final long leafCount;
+
+  private LeafHashCache(FileChannel channel, MappedByteBuffer leaves, long leafCount) {
+    this.channel = channel;
+    this.leaves = leaves;
+    this.leafCount = leafCount;
+  }
+
+  /**
+   * Opens the cache for {@code file}, and starts it over if it belongs to a different file
+   * or to an older version of the file.
+   */
+  static LeafHashCache open(Path cacheFile, Path file) throws IOException {
+    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+    long size = attributes.size();
+    long leafCount = (size + TreeHashes.leafSize - 1) / TreeHashes.leafSize;
+    long cacheSize = headerSize + leafCount * LeafDigests.digestLength;
+    if (cacheSize > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("File is too large for the hash cache: " + size);
+    }
+    ByteBuffer header = ByteBuffer.allocate(headerSize);
+    header.putInt(magic)
+        .putInt(version)
+        .putLong(size)
+        .putLong(attributes.lastModifiedTime().toMillis())
+        .put(identity(file, attributes));
+    header.clear();
+
+    FileChannel channel = FileChannel.open(cacheFile,
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      ByteBuffer existing = ByteBuffer.allocate(headerSize);
+      while (existing.hasRemaining() && channel.read(existing, existing.position()) >= 0) {
+        // read the whole header
+      }
+      existing.clear();
+      if (!existing.equals(header) || channel.size() != cacheSize) {
+        log.info("Starting a new hash cache: " + cacheFile);
+        channel.truncate(0);
+        while (header.hasRemaining()) {
+          channel.write(header, header.position());
+        }
+      } else {
+        log.info("Using hash cache: " + cacheFile);
+      }
+      MappedByteBuffer leaves = channel.map(FileChannel.MapMode.READ_WRITE, 0, cacheSize);
+      return new LeafHashCache(channel, leaves, leafCount);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  private static byte[] identity(Path file, BasicFileAttributes attributes) {
+    MessageDigest digest = TreeHashes.sha256();
+    try {
+      digest.update(file.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+      digest.update(String.valueOf(attributes.fileKey()).getBytes(StandardCharsets.UTF_8));
+      return digest.digest();
+    } finally {
+      TreeHashes.release(digest);
+    }
+  }
+
+  /**
+   * Adds the cached digests of {@code count} leaves, if all of them are known.
+   *
+   * @return true if the leaves were added
+   */
+  boolean lookup(long firstLeaf, int count, LeafDigests into) {
+    if (firstLeaf + count > leafCount) {
+      return false;
+    }
+    byte[] leaf = new byte[LeafDigests.digestLength];
+    ByteBuffer view = leaves.duplicate();
+    view.position(offset(firstLeaf));
+    for (int i = 0; i < count; i++) {
+      view.get(leaf);
+      if (Arrays.equals(leaf, missing)) {
+        return false;
+      }
+    }
+    view.position(offset(firstLeaf));
+    for (int i = 0; i < count; i++) {
+      view.get(leaf);
+      into.add(leaf);
+    }
+    return true;
+  }
+
+  void store(long firstLeaf, LeafDigests digests) {
+    ByteBuffer view = leaves.duplicate();
+    view.position(offset(firstLeaf));
+    for (int i = 0; i < digests.count(); i++) {
+      view.put(digests.get(i));
+    }
+  }
+
+  /**
+   * Marks {@code count} leaves as not hashed, so that they are hashed again.
+   */
+  void clear(long firstLeaf, int count) {
+    ByteBuffer view = leaves.duplicate();
+    view.position(offset(firstLeaf));
+    for (long i = firstLeaf; i < Math.min(leafCount, firstLeaf + count); i++) {
+      view.put(missing);
+    }
+  }
+
+  private int offset(long leaf) {
+    return (int) (headerSize + leaf * LeafDigests.digestLength);
+  }
+
+  @Override
+  public void close() throws IOException {
+    leaves.force();
+    channel.close();
+  }
+}
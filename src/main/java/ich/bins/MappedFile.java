@@ -0,0 +1,61 @@
+package ich.bins;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Hands out read-only slices of a memory mapped file.
+ * The file is mapped in aligned windows, because a single mapping
+ * can not be larger than 2 GB. A part that crosses a window boundary
+ * gets a mapping of its own.
+ */
+final class MappedFile implements PartSource {
+
+  private static final int windowSize = 1 << 30; // 1 GB.
+
+  private final FileChannel channel;
+  private final long size;
+  private final MappedByteBuffer[] windows;
+
+  MappedFile(FileChannel channel, long size) {
+    this.channel = channel;
+    this.size = size;
+    this.windows = new MappedByteBuffer[(int) ((size + windowSize - 1) / windowSize)];
+  }
+
+  @Override
+  public ByteBuffer read(long position, int length, LeafDigests leaves) throws IOException {
+    ByteBuffer slice = slice(position, length);
+    if (leaves != null) {
+      TreeHashes.digestLeavesInParallel(slice, leaves);
+    }
+    return slice;
+  }
+
+  private ByteBuffer slice(long position, int length) throws IOException {
+    if (position + length > size) {
+      throw new EOFException("Unexpected end of file at position " + size);
+    }
+    int index = (int) (position / windowSize);
+    long windowStart = (long) index * windowSize;
+    if (position + length > windowStart + windowSize) {
+      return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+    }
+    ByteBuffer slice = window(index).duplicate();
+    slice.position((int) (position - windowStart));
+    slice.limit(slice.position() + length);
+    return slice.slice();
+  }
+
+  private synchronized MappedByteBuffer window(int index) throws IOException {
+    if (windows[index] == null) {
+      long windowStart = (long) index * windowSize;
+      windows[index] = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+          Math.min(windowSize, size - windowStart));
+    }
+    return windows[index];
+  }
+}
@@ -0,0 +1,88 @@
+package ich.bins;
+
+/**
+ * Chooses the part size of a multipart upload.
+ * Glacier wants a power of two between 1 MB and 4 GB, and at most 10,000 parts.
+ * Parts are held in a single {@link java.nio.ByteBuffer}, which limits them to 1 GB here.
+ */
+final class PartSizes {
+
+  static final int minPartSize = 1 << 20; // 1 MB.
+  static final int maxPartSize = 1 << 30; // 1 GB.
+  static final int maxParts = 10000;
+
+  // Larger parts make fewer requests, but a failed attempt has to send more bytes again.
+  private static final int preferredMaxPartSize = 64 << 20; // 64 MB.
+
+  // Each upload thread should get a few parts, so the threads finish at about the same time.
+  private static final int partsPerThread = 4;
+
+  // An input of unknown size, such as a tar stream, should be able to grow this large.
+  private static final long expectedStreamSize = 4L << 40; // 4 TB.
+  // The memory budget must hold at least this many parts of an input of unknown size.
+  private static final int minStreamBuffers = 4;
+
+  private PartSizes() {
+  }
+
+  /**
+   * @param archiveSize size of the archive, or a negative number if it is not known
+   * @param concurrency number of parts that are uploaded at the same time
+   * @param memoryBudget bytes available for part buffers; each upload may need two buffers
+   * @return the part size; if the archive size is not known, a size that allows a
+   * few TB if the memory budget holds a few parts of that size
+   * @see #largestArchive(int)
+   * @throws IllegalArgumentException if the archive can not be uploaded in 10,000 parts
+   */
+  static int choose(long archiveSize, int concurrency, long memoryBudget) {
+    int smallest = archiveSize < 0 ?
+        minPartSize :
+        powerOfTwoAtLeast(Math.max(minPartSize, (archiveSize + maxParts - 1) / maxParts));
+    if (smallest > maxPartSize) {
+      throw new IllegalArgumentException("Archive size " + archiveSize +
+          " needs more than " + maxParts + " parts of " + maxPartSize + " bytes");
+    }
+    int largest = Math.min(preferredMaxPartSize,
+        powerOfTwoAtMost(Math.max(minPartSize, memoryBudget / (2L * concurrency))));
+    if (archiveSize < 0) {
+      // Fewer parts are uploaded at the same time if the budget does not hold two per upload,
+      // but the upload must not fail after 10,000 parts.
+      int covering = powerOfTwoAtLeast(expectedStreamSize / maxParts);
+      int affordable = powerOfTwoAtMost(Math.max(minPartSize, memoryBudget / minStreamBuffers));
+      return Math.max(largest, Math.min(covering, affordable));
+    }
+    int wanted = powerOfTwoAtMost(Math.max(minPartSize,
+        archiveSize / ((long) partsPerThread * concurrency)));
+    return Math.max(smallest, Math.min(wanted, largest));
+  }
+
+  /**
+   * @return the largest archive that can be uploaded in parts of {@code partSize}
+   */
+  static long largestArchive(int partSize) {
+    return (long) partSize * maxParts;
+  }
+
+  /**
+   * @param megabytes part size in MB, given on the command line
+   * @return the part size in bytes
+   * @throws IllegalArgumentException if the size is not allowed
+   */
+  static int fromMegabytes(int megabytes) {
+    long size = megabytes * (long) minPartSize;
+    if (size < minPartSize || size > maxPartSize || Long.bitCount(size) != 1) {
+      throw new IllegalArgumentException("Part size must be a power of two between 1 and " +
+          (maxPartSize / minPartSize) + " MB: " + megabytes);
+    }
+    return (int) size;
+  }
+
+  private static int powerOfTwoAtLeast(long n) {
+    long size = Long.highestOneBit(n);
+    return (int) Math.min(Integer.MAX_VALUE, size == n ? size : size << 1);
+  }
+
+  private static int powerOfTwoAtMost(long n) {
+    return (int) Math.min(maxPartSize, Long.highestOneBit(n));
+  }
+}
@@ -0,0 +1,36 @@
+package ich.bins;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Random access to the bytes of the archive.
+ * Implementations must be safe to use from several upload threads at once.
+ */
+interface PartSource {
+
+  /**
+   * @param position offset of the part in the archive
+   * @param length length of the part
+   * @param leaves if not {@code null}, receives the digests of the 1 MB leaves of the part,
+   * computed while the part is read
+   * @return a buffer with exactly {@code length} remaining bytes,
+   * which must be passed to {@link #release(ByteBuffer)} when it is no longer needed
+   * @throws java.io.EOFException if the archive ends before the part does
+   */
+  ByteBuffer read(long position, int length, LeafDigests leaves) throws IOException, InterruptedException;
+
+  /**
+   * @param buffer a buffer that was returned by {@link #read(long, int, LeafDigests)}
+   */
+  default void release(ByteBuffer buffer) {
+  }
+
+  /**
+   * Forgets the leaf digests that are known for a part without hashing it,
+   * because glacier received bytes that did not match them.
+   * The next read that asks for the leaves computes them from the bytes.
+   */
+  default void invalidate(long position, int length) {
+  }
+}
@@ -0,0 +1,48 @@
+package ich.bins;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.Request;
+import com.amazonaws.SignableRequest;
+import com.amazonaws.auth.AWS4Signer;
+import com.amazonaws.auth.SignerFactory;
+import com.amazonaws.handlers.HandlerContextKey;
+
+/**
+ * A SigV4 signer that takes the {@code x-amz-content-sha256} of a request
+ * from the request's handler context, if it was put there.
+ * The upload threads compute the linear hash of a part in the same pass as its leaf digests,
+ * so the signer does not have to read the whole part a second time.
+ * Requests without a payload hash are signed as usual.
+ */
+public final class PayloadHashSigner extends AWS4Signer {
+
+  static final String name = "GlacierPayloadHashSigner";
+
+  /**
+   * The hex encoded sha-256 of the request body.
+   */
+  static final HandlerContextKey<String> payloadHash = new HandlerContextKey<>("PayloadHash");
+
+  static {
+    SignerFactory.registerSigner(name, PayloadHashSigner.class);
+  }
+
+  /**
+   * Makes sure the signer is registered before a client asks for it by {@link #name}.
+   */
+  static String register() {
+    return name;
+  }
+
+  @Override
+  protected String calculateContentHash(SignableRequest<?> request) {
+    if (request instanceof Request) {
+      AmazonWebServiceRequest original = ((Request<?>) request).getOriginalRequest();
+      String hash = original == null ? null : original.getHandlerContext(payloadHash);
+      if (hash != null) {
+        return hash;
+      }
+    }
+    return super.calculateContentHash(request);
+  }
+}
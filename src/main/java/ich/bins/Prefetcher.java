@@ -0,0 +1,223 @@
+package ich.bins;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.IntSupplier;
+
+/**
+ * Reads the parts of a file in order on a thread of its own, and keeps
+ * a few of them ready ahead of the upload threads. This helps on spinning disks,
+ * where sequential reads are fast but the upload threads would otherwise
+ * wait for the disk each time they start a new part.
+ *
+ * <p>The number of parts that are kept ready adapts to the measured read and
+ * upload times: if reading a part takes {@code r} and uploading it takes {@code u},
+ * then {@code n} concurrent uploads use up about {@code n * r / u} parts while
+ * one part is read.
+ *
+ * <p>Each part is prefetched once. When an upload is retried, the part is read
+ * again from the underlying source.
+ */
+final class Prefetcher implements PartSource, Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(Prefetcher.class);
+
+  private static final double smoothing = 0.2;
+
+  private final PartSource source;
+  private final long start;
+  private final long size;
+  private final int partSize;
+  private final IntSupplier concurrency;
+  private final int maxDepth;
+
+  private final Map<Long, CompletableFuture<ByteBuffer>> ready = new ConcurrentHashMap<>();
+  private final Map<Long, LeafDigests> readyLeaves = new ConcurrentHashMap<>();
+  private final Set<Long> taken = ConcurrentHashMap.newKeySet();
+  private final Map<ByteBuffer, Long> uploadStart = Collections.synchronizedMap(new IdentityHashMap<>());
+
+  private final Thread reader;
+  // stops the reader; it is not interrupted, because an interrupted read closes the channel
+  // that the upload threads read from as well
+  private volatile boolean closed;
+
+  // guarded by this
+  private int depth;
+  private int prefetched;
+  private double readNanos;
+  private double uploadNanos;
+
+  /**
+   * @param start position of the first part to read, a multiple of {@code partSize}
+   * @param concurrency the number of parts that are currently uploaded at the same time
+   */
+  Prefetcher(PartSource source, long start, long size, int partSize, IntSupplier concurrency, int maxDepth) {
+    this.source = source;
+    this.start = start;
+    this.size = size;
+    this.partSize = partSize;
+    this.concurrency = concurrency;
+    this.maxDepth = maxDepth;
+    this.depth = Math.min(concurrency.getAsInt(), maxDepth);
+    this.reader = new Thread(this::readAhead, "prefetcher");
+    this.reader.setDaemon(true);
+    this.reader.start();
+  }
+
+  private void readAhead() {
+    for (long position = start; position < size; position += partSize) {
+      try {
+        if (!awaitSlot()) {
+          return;
+        }
+      } catch (InterruptedException e) {
+        return;
+      }
+      CompletableFuture<ByteBuffer> part = ready.computeIfAbsent(position, p -> new CompletableFuture<>());
+      try {
+        int length = (int) Math.min(partSize, size - position);
+        LeafDigests leaves = LeafDigests.forLength(length);
+        long readStart = System.nanoTime();
+        ByteBuffer buffer = source.read(position, length, leaves);
+        partRead(System.nanoTime() - readStart);
+        readyLeaves.put(position, leaves);
+        part.complete(buffer);
+      } catch (InterruptedException e) {
+        part.completeExceptionally(e);
+        return;
+      } catch (Exception e) {
+        part.completeExceptionally(e);
+      }
+    }
+  }
+
+  /**
+   * @return false if the prefetcher was closed
+   */
+  private synchronized boolean awaitSlot() throws InterruptedException {
+    while (prefetched >= depth && !closed) {
+      wait();
+    }
+    if (closed) {
+      return false;
+    }
+    prefetched++;
+    return true;
+  }
+
+  @Override
+  public ByteBuffer read(long position, int length, LeafDigests leaves)
+      throws IOException, InterruptedException {
+    if (!taken.add(position)) {
+      return source.read(position, length, leaves);
+    }
+    ByteBuffer buffer;
+    try {
+      buffer = ready.computeIfAbsent(position, p -> new CompletableFuture<>()).get();
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof IOException ?
+          (IOException) e.getCause() :
+          new IOException(e.getCause());
+    } finally {
+      ready.remove(position);
+      partTaken();
+    }
+    LeafDigests partLeaves = readyLeaves.remove(position);
+    if (leaves != null) {
+      leaves.addAll(partLeaves);
+    }
+    uploadStart.put(buffer, System.nanoTime());
+    return buffer;
+  }
+
+  @Override
+  public void release(ByteBuffer buffer) {
+    Long start = uploadStart.remove(buffer);
+    if (start != null) {
+      partUploaded(System.nanoTime() - start);
+    }
+    source.release(buffer);
+  }
+
+  @Override
+  public void invalidate(long position, int length) {
+    source.invalidate(position, length);
+  }
+
+  private synchronized void partTaken() {
+    prefetched--;
+    notifyAll();
+  }
+
+  private synchronized void partRead(long nanos) {
+    readNanos = readNanos == 0 ? nanos : smoothing * nanos + (1 - smoothing) * readNanos;
+    adapt();
+  }
+
+  private synchronized void partUploaded(long nanos) {
+    uploadNanos = uploadNanos == 0 ? nanos : smoothing * nanos + (1 - smoothing) * uploadNanos;
+    adapt();
+  }
+
+  private void adapt() {
+    if (readNanos == 0 || uploadNanos == 0) {
+      return;
+    }
+    double wanted = concurrency.getAsInt() * readNanos / uploadNanos + 1;
+    // shrink only when clearly too deep, so that the depth does not flap between two values
+    int newDepth = (int) Math.max(1, Math.min(maxDepth,
+        Math.ceil(wanted) > depth ? Math.ceil(wanted) : Math.min(depth, Math.ceil(wanted * 1.5))));
+    if (newDepth != depth) {
+      log.info(String.format("Prefetch depth %d -> %d (read %.0f ms, upload %.0f ms per part)",
+          depth, newDepth, readNanos / 1e6, uploadNanos / 1e6));
+      depth = newDepth;
+      notifyAll();
+    }
+  }
+
+  /**
+   * Stops reading ahead, and gives back the buffers of parts that were never uploaded.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      closed = true;
+      notifyAll();
+    }
+    // a reader that waits for a buffer gets one of these, finishes its read and stops
+    releaseReady(false);
+    try {
+      reader.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    releaseReady(true);
+  }
+
+  /**
+   * @param stopped true if the reader has stopped, so that parts it has not read never will be
+   */
+  private void releaseReady(boolean stopped) {
+    for (Long position : ready.keySet()) {
+      CompletableFuture<ByteBuffer> part = ready.remove(position);
+      if (part == null) {
+        continue;
+      }
+      part.thenAccept(source::release);
+      if (stopped) {
+        part.completeExceptionally(new IOException("The prefetcher was closed"));
+      }
+    }
+  }
+}
@@ -0,0 +1,38 @@
+package ich.bins;
+
+import java.util.Locale;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * How the parts of a file are read.
+ */
+enum ReadMode {
+
+  /**
+   * Each upload thread reads its part with a positional read into a pooled buffer.
+   */
+  POSITIONAL,
+
+  /**
+   * Parts are slices of a memory mapped file.
+   */
+  MMAP,
+
+  /**
+   * Like {@link #POSITIONAL}, but the file is opened with {@code O_DIRECT},
+   * so that the upload does not push other data out of the page cache.
+   */
+  DIRECT;
+
+  /**
+   * Parses the lower case names that are used on the command line.
+   */
+  static final class Mapper implements Supplier<Function<String, ReadMode>> {
+
+    @Override
+    public Function<String, ReadMode> get() {
+      return s -> ReadMode.valueOf(s.toUpperCase(Locale.ROOT));
+    }
+  }
+}
@@ -0,0 +1,31 @@
+package ich.bins;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * A part of an input that can not be read twice, such as a pipe.
+ * The bytes are kept in memory until the part is uploaded.
+ */
+final class StreamedPart implements PartSource {
+
+  private final ByteBuffer buffer;
+
+  StreamedPart(ByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  @Override
+  public ByteBuffer read(long position, int length, LeafDigests leaves) {
+    ByteBuffer data = buffer.duplicate();
+    if (leaves != null) {
+      MessageDigest digest = TreeHashes.sha256();
+      try {
+        TreeHashes.digestLeaves(digest, data, leaves);
+      } finally {
+        TreeHashes.release(digest);
+      }
+    }
+    return data;
+  }
+}
@@ -0,0 +1,143 @@
+package ich.bins;
+
+import com.amazonaws.util.BinaryUtils;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Builds the tree hash of an archive while its leaves arrive, in any order.
+ * As soon as both children of a node are known, they are replaced by the node.
+ * When the leaves arrive roughly in order, only about one node per level is kept,
+ * so the memory used is logarithmic in the number of leaves.
+ */
+final class TreeHashAccumulator {
+
+  // levels.get(h) holds the known nodes of height h, by their index within the level
+  private final List<Map<Long, byte[]>> levels = new ArrayList<>();
+
+  private long leafCount;
+
+  /**
+   * Adds the root of an aligned subtree, such as the checksum of a part.
+   * The last subtree of the archive may have fewer leaves than {@code 2^height};
+   * its root is still the node at that height, because an odd node moves up unchanged.
+   *
+   * @param height height of the subtree, 0 for a single leaf
+   * @param index index of the subtree among the nodes of that height
+   * @param root root of the subtree
+   * @param leaves number of leaves in the subtree
+   */
+  synchronized void add(int height, long index, byte[] root, int leaves) {
+    add(height, index, root);
+    leafCount += leaves;
+  }
+
+  /**
+   * Adds a node that was taken from {@link #nodes()}.
+   */
+  synchronized void add(Node node) {
+    add(node.height, node.index, node.root);
+    leafCount += node.leaves();
+  }
+
+  private void add(int height, long index, byte[] node) {
+    MessageDigest digest = TreeHashes.sha256();
+    try {
+      while (true) {
+        Map<Long, byte[]> level = level(height);
+        byte[] sibling = level.remove(index ^ 1);
+        if (sibling == null) {
+          level.put(index, node);
+          return;
+        }
+        node = (index & 1) == 0 ?
+            TreeHashes.combine(digest, node, sibling) :
+            TreeHashes.combine(digest, sibling, node);
+        height++;
+        index >>= 1;
+      }
+    } finally {
+      TreeHashes.release(digest);
+    }
+  }
+
+  private Map<Long, byte[]> level(int height) {
+    while (levels.size() <= height) {
+      levels.add(new HashMap<>());
+    }
+    return levels.get(height);
+  }
+
+  /**
+   * @return the nodes that are waiting for a sibling; adding them to a new accumulator
+   * restores the state of this one, as long as no subtree was shorter than its height allows
+   */
+  synchronized List<Node> nodes() {
+    List<Node> nodes = new ArrayList<>();
+    for (int height = levels.size() - 1; height >= 0; height--) {
+      for (Map.Entry<Long, byte[]> node : new TreeMap<>(levels.get(height)).entrySet()) {
+        nodes.add(new Node(height, node.getKey(), node.getValue()));
+      }
+    }
+    return nodes;
+  }
+
+  /**
+   * Completes the right edge of the tree, where a node without a right sibling
+   * moves up unchanged. No more leaves can be added after this.
+   *
+   * @return the tree hash of all leaves that were added, as a hex string
+   * @throws IllegalStateException if the leaves that were added are not contiguous
+   */
+  synchronized String treeHash() {
+    if (leafCount == 0) {
+      throw new IllegalStateException("No leaves");
+    }
+    // A subtree root may sit higher than the tree of leafCount leaves reaches,
+    // if the whole archive is a single part; it moves up to the top level as well.
+    long width = leafCount;
+    int height = 0;
+    for (; height < levels.size() - 1; height++, width = (width + 1) / 2) {
+      long last = width - 1;
+      if ((last & 1) == 0) {
+        byte[] node = level(height).remove(last);
+        if (node != null) {
+          add(height + 1, last >> 1, node);
+        }
+      }
+      if (!level(height).isEmpty()) {
+        throw new IllegalStateException("Missing leaves below height " + height);
+      }
+    }
+    byte[] root = level(height).get(0L);
+    if (root == null || level(height).size() != 1) {
+      throw new IllegalStateException("Missing leaves");
+    }
+    return BinaryUtils.toHex(root);
+  }
+
+  static final class Node {
+
+    final int height;
+    final long index;
+    final byte[] root;
+
+    Node(int height, long index, byte[] root) {
+      this.height = height;
+      this.index = index;
+      this.root = root;
+    }
+
+    /**
+     * @return the number of leaves below a node that is not on the right edge of the tree
+     */
+    long leaves() {
+      return 1L << height;
+    }
+  }
+}
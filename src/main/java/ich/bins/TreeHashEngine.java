@@ -0,0 +1,140 @@
+package ich.bins;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Computes the tree hash of a whole file on a fork-join pool.
+ * The leaves are read with positional reads and hashed in parallel,
+ * and the tree is reduced as the subtrees complete.
+ *
+ * <p>The glacier tree pairs up the nodes of each level from the left, and moves an odd
+ * node up unchanged. The root of {@code n > 1} leaves is therefore the hash of the root
+ * of the first {@code k} leaves and the root of the rest, where {@code k} is
+ * the largest power of two below {@code n}. This is how the work is split.
+ */
+final class TreeHashEngine {
+
+  // subtrees with at most this many leaves are hashed by a single task
+  private static final int sequentialLeaves = 8;
+
+  private static final ThreadLocal<ByteBuffer> leafBuffers =
+      ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(TreeHashes.leafSize));
+
+  private final ForkJoinPool pool;
+
+  TreeHashEngine(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  TreeHashEngine() {
+    this(ForkJoinPool.commonPool());
+  }
+
+  /**
+   * @return the binary tree hash of the file
+   */
+  byte[] hash(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      return hash(channel, channel.size());
+    }
+  }
+
+  /**
+   * @return the binary tree hash of the first {@code size} bytes of the channel
+   */
+  byte[] hash(FileChannel channel, long size) throws IOException {
+    if (size == 0) {
+      MessageDigest digest = TreeHashes.sha256();
+      try {
+        return digest.digest();
+      } finally {
+        TreeHashes.release(digest);
+      }
+    }
+    long leaves = (size + TreeHashes.leafSize - 1) / TreeHashes.leafSize;
+    try {
+      return pool.invoke(new Subtree(channel, size, 0, leaves));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  private static final class Subtree extends RecursiveTask<byte[]> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final FileChannel channel;
+    private final long size;
+    private final long from;
+    private final long to;
+
+    Subtree(FileChannel channel, long size, long from, long to) {
+      this.channel = channel;
+      this.size = size;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected byte[] compute() {
+      if (to - from > sequentialLeaves) {
+        return split();
+      }
+      MessageDigest digest = TreeHashes.sha256();
+      try {
+        return root(from, to, digest);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      } finally {
+        TreeHashes.release(digest);
+      }
+    }
+
+    /**
+     * Hashes the two subtrees in parallel, the right one on another task.
+     */
+    private byte[] split() {
+      long middle = from + Long.highestOneBit(to - from - 1);
+      Subtree left = new Subtree(channel, size, from, middle);
+      Subtree right = new Subtree(channel, size, middle, to);
+      right.fork();
+      byte[] leftHash = left.compute();
+      return TreeHashes.combine(leftHash, right.join());
+    }
+
+    private byte[] root(long from, long to, MessageDigest digest) throws IOException {
+      if (to - from == 1) {
+        return leaf(from, digest);
+      }
+      long middle = from + Long.highestOneBit(to - from - 1);
+      byte[] left = root(from, middle, digest);
+      byte[] right = root(middle, to, digest);
+      return TreeHashes.combine(digest, left, right);
+    }
+
+    private byte[] leaf(long index, MessageDigest digest) throws IOException {
+      long position = index * TreeHashes.leafSize;
+      ByteBuffer buffer = leafBuffers.get();
+      buffer.clear();
+      buffer.limit((int) Math.min(TreeHashes.leafSize, size - position));
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, position + buffer.position()) < 0) {
+          throw new EOFException("Unexpected end of file at position " +
+              (position + buffer.position()));
+        }
+      }
+      buffer.flip();
+      digest.update(buffer);
+      return digest.digest();
+    }
+  }
+}
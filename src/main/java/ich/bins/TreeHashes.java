@@ -0,0 +1,161 @@
+package ich.bins;
+
+import com.amazonaws.util.BinaryUtils;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.IntStream;
+
+/**
+ * Helpers for the leaf level of the glacier tree hash.
+ * They replace the sdk's {@code TreeHashGenerator} on the upload path, which allocates
+ * a new digest, lists and copies for every part.
+ */
+final class TreeHashes {
+
+  static final int leafSize = 1048576; // 1 MB.
+
+  // Shared by all threads rather than kept per thread: an upload thread may be a virtual thread
+  // that lives for a single part, and would create a digest of its own every time.
+  private static final Queue<MessageDigest> digests = new ConcurrentLinkedQueue<>();
+
+  private TreeHashes() {
+  }
+
+  /**
+   * @return a pooled digest, which should be passed to {@link #release(MessageDigest)}
+   * once it is no longer used
+   */
+  static MessageDigest sha256() {
+    MessageDigest digest = digests.poll();
+    return digest != null ? digest : newSha256();
+  }
+
+  static void release(MessageDigest digest) {
+    digest.reset();
+    digests.offer(digest);
+  }
+
+  private static MessageDigest newSha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Compares a checksum that was returned by glacier with a local one,
+   * in time that does not depend on where they differ.
+   *
+   * @return true if {@code hex} is the hex encoding of {@code expected}
+   */
+  static boolean matches(byte[] expected, String hex) {
+    if (hex == null || hex.length() != 2 * expected.length) {
+      return false;
+    }
+    byte[] actual;
+    try {
+      actual = BinaryUtils.fromHex(hex);
+    } catch (RuntimeException e) {
+      return false;
+    }
+    return MessageDigest.isEqual(expected, actual);
+  }
+
+  /**
+   * @return the hash of two adjacent nodes of the tree
+   */
+  static byte[] combine(byte[] left, byte[] right) {
+    MessageDigest digest = sha256();
+    try {
+      return combine(digest, left, right);
+    } finally {
+      release(digest);
+    }
+  }
+
+  static byte[] combine(MessageDigest digest, byte[] left, byte[] right) {
+    digest.update(left);
+    digest.update(right);
+    return digest.digest();
+  }
+
+  /**
+   * Adds the digest of each 1 MB leaf in the remaining bytes of {@code data},
+   * and the linear hash of all of them if there is more than one leaf.
+   * Works with heap, direct and mapped buffers alike.
+   * The position of {@code data} is not changed.
+   */
+  static void digestLeaves(MessageDigest digest, ByteBuffer data, LeafDigests leaves) {
+    MessageDigest payload = data.remaining() > leafSize ? sha256() : null;
+    try {
+      ByteBuffer leaf = data.duplicate();
+      for (int start = data.position(); start < data.limit(); start += leafSize) {
+        leaf.limit(Math.min(data.limit(), start + leafSize));
+        leaf.position(start);
+        digestLeaf(digest, payload, leaf, leaves);
+      }
+      if (payload != null) {
+        leaves.setPayloadHash(payload);
+      }
+    } finally {
+      if (payload != null) {
+        release(payload);
+      }
+    }
+  }
+
+  /**
+   * Adds the digest of the remaining bytes of {@code leaf}, and feeds the same bytes
+   * to {@code payload} unless it is null, while they are still in the cpu cache.
+   */
+  static void digestLeaf(MessageDigest digest, MessageDigest payload, ByteBuffer leaf, LeafDigests leaves) {
+    if (payload != null) {
+      int start = leaf.position();
+      payload.update(leaf);
+      leaf.position(start);
+    }
+    digest.update(leaf);
+    leaves.add(digest);
+  }
+
+  /**
+   * Like {@link #digestLeaves}, but the leaves are hashed on the common fork-join pool,
+   * so that a large part is hashed by all cores and not only by the thread that uploads it.
+   */
+  static void digestLeavesInParallel(ByteBuffer data, LeafDigests leaves) {
+    int n = (data.remaining() + leafSize - 1) / leafSize;
+    if (n <= 1) {
+      MessageDigest digest = sha256();
+      try {
+        digestLeaves(digest, data, leaves);
+      } finally {
+        release(digest);
+      }
+      return;
+    }
+    int first = leaves.reserve(n);
+    // task -1 computes the linear hash, which can not be split, next to the leaves
+    IntStream.range(-1, n).parallel().forEach(i -> {
+      MessageDigest digest = sha256();
+      try {
+        if (i < 0) {
+          digest.update(data.duplicate());
+          leaves.setPayloadHash(digest);
+          return;
+        }
+        ByteBuffer leaf = data.duplicate();
+        leaf.position(data.position() + i * leafSize);
+        leaf.limit(Math.min(data.limit(), leaf.position() + leafSize));
+        digest.update(leaf);
+        leaves.set(first + i, digest);
+      } finally {
+        release(digest);
+      }
+    });
+  }
+}
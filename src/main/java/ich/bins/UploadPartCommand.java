@@ -1,78 +1,401 @@
 package ich.bins;
 
-import com.amazonaws.services.glacier.TreeHashGenerator;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.glacier.model.UploadMultipartPartRequest;
 import com.amazonaws.services.glacier.model.UploadMultipartPartResult;
+import com.amazonaws.util.BinaryUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
-import java.util.concurrent.Callable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
-final class UploadPartCommand implements Callable<UploadMultipartPartResult> {
+/**
+ * Uploads one part, retrying failed attempts.
+ * A straggling part may be sent a second time by a hedge, see {@link Hedging};
+ * the first attempt that succeeds completes the part, and the other one is cancelled.
+ */
+final class UploadPartCommand {
 
   private static final int MAX_ATTEMPTS = 200;
+  // the attempt number of a hedge, which is not retried
+  private static final int HEDGE = -1;
 
   private final Logger log = LoggerFactory.getLogger(getClass());
 
   private final ArchiveMPU archiveMPU;
   private final AtomicInteger numParts;
   private final AtomicInteger completed;
+  private final AdaptiveConcurrency concurrency;
+  private final Hedging hedging;
 
+  private final PartSource source;
   private final long offset;
+  private final int length;
   private final String uploadId;
 
-  private final byte[] bytesRead;
+  // Computed lazily by the upload thread, during the first read of the part,
+  // and read by the main thread after the upload has completed.
+  volatile String checksum;
+  volatile byte[] root;
+  // the linear hash for request signing, if it was computed along with the leaves
+  private volatile String payloadHash;
+  // set when glacier did not agree with the leaves, so that the next read hashes the part again
+  private final AtomicBoolean rehash = new AtomicBoolean();
 
-  final String checksum;
+  private final CompletableFuture<UploadMultipartPartResult> result = new CompletableFuture<>();
+  private final CompletableFuture<Void> settled = new CompletableFuture<>();
+  // the attempts that may still use the bytes of the part
+  private final AtomicInteger attempts = new AtomicInteger();
+  private final AtomicBoolean hedged = new AtomicBoolean();
+  // System.nanoTime() when the current attempt started, or 0 before the first one
+  private volatile long attemptStart;
 
+  /**
+   * @param hedging decides when the part is sent a second time, or {@code null} to never hedge
+   */
   UploadPartCommand(ArchiveMPU archiveMPU,
                     AtomicInteger numParts,
                     AtomicInteger completed,
+                    AdaptiveConcurrency concurrency,
+                    Hedging hedging,
+                    PartSource source,
                     long offset,
-                    byte[] bytesRead,
+                    int length,
                     String uploadId) {
     this.archiveMPU = archiveMPU;
     this.numParts = numParts;
     this.completed = completed;
-    this.bytesRead = bytesRead;
+    this.concurrency = concurrency;
+    this.hedging = hedging;
+    this.source = source;
     this.offset = offset;
+    this.length = length;
     this.uploadId = uploadId;
-    this.checksum = bytesRead == null ?
-        null :
-        TreeHashGenerator.calculateTreeHash(new ByteArrayInputStream(bytesRead));
   }
 
-  @Override
-  public UploadMultipartPartResult call() throws Exception {
-    String contentRange = String.format("bytes %d-%d/*",
-        offset,
-        offset + bytesRead.length - 1);
-    for (int i = 0; i < MAX_ATTEMPTS; i++) {
+  /**
+   * Starts the upload. Each attempt reads the part on {@code pool}.
+   * If there is an {@code uploader}, it sends the part, and no thread waits
+   * while the part is on the wire. Otherwise a thread of {@code pool} sends it.
+   *
+   * @return completed when the part is uploaded, or when it has failed too often
+   */
+  CompletableFuture<UploadMultipartPartResult> start(Executor pool, AsyncPartUploader uploader) {
+    if (uploader != null) {
+      attemptAsync(uploader, pool, contentRange(), 0);
+    } else {
+      pool.execute(this::uploadWithRetries);
+    }
+    return result;
+  }
+
+  /**
+   * @return completed when the part is done, and no attempt uses the part's bytes any more
+   */
+  CompletableFuture<Void> settled() {
+    return settled;
+  }
+
+  /**
+   * Stops the upload: running attempts are aborted, and no more attempts are started.
+   * The part fails, unless it has already been uploaded.
+   */
+  void cancel() {
+    result.cancel(false);
+    settle();
+  }
+
+  /**
+   * Sends the part a second time, if the current attempt takes too long
+   * and the part has not been hedged before.
+   */
+  void hedgeIfStraggling(Executor pool, AsyncPartUploader uploader) {
+    long start = attemptStart;
+    // the hedge should not hash the part again, so it waits until the leaves are known
+    if (hedging == null || start == 0 || root == null || result.isDone()) {
+      return;
+    }
+    long nanos = System.nanoTime() - start;
+    if (!hedging.isStraggler(nanos, length) || !hedged.compareAndSet(false, true)) {
+      return;
+    }
+    String contentRange = contentRange();
+    log.info(contentRange + " is straggling after " + nanos / 1000000 + " ms, sending it again");
+    if (uploader != null) {
+      attemptAsync(uploader, pool, contentRange, HEDGE);
+    } else {
+      pool.execute(() -> attempt(contentRange, HEDGE));
+    }
+  }
+
+  private void uploadWithRetries() {
+    String contentRange = contentRange();
+    for (int i = 0; i < MAX_ATTEMPTS && !result.isDone(); i++) {
+      if (!attempt(contentRange, i)) {
+        return;
+      }
+    }
+    giveUp(contentRange);
+  }
+
+  /**
+   * @return false if the attempt was interrupted
+   */
+  private boolean attempt(String contentRange, int attempt) {
+    if (!startAttempt(attempt)) {
+      return true;
+    }
+    long start = System.nanoTime();
+    try {
+      won(start, contentRange, upload(contentRange));
+    } catch (InterruptedException e) {
+      result.completeExceptionally(e);
+      return false;
+    } catch (Exception e) {
+      failed(start, contentRange, attempt, e);
+    } finally {
+      endAttempt();
+    }
+    return true;
+  }
+
+  private void attemptAsync(AsyncPartUploader uploader, Executor readers, String contentRange, int attempt) {
+    if (attempt == MAX_ATTEMPTS) {
+      giveUp(contentRange);
+      return;
+    }
+    if (!startAttempt(attempt)) {
+      return;
+    }
+    long start = System.nanoTime();
+    CompletableFuture.supplyAsync(() -> {
+      try {
+        return read();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new CompletionException(e);
+      }
+    }, readers).thenCompose(body -> {
+      try {
+        CompletableFuture<String> request = uploader.upload(uploadId, contentRange, checksum, payloadHash, body);
+        // when the other attempt wins, this one is aborted
+        result.whenComplete((partResult, e) -> request.cancel(true));
+        return request.whenComplete((returned, e) -> source.release(body));
+      } catch (RuntimeException e) {
+        source.release(body);
+        throw e;
+      }
+    }).whenComplete((returned, e) -> {
+      boolean retry = false;
       try {
-        UploadMultipartPartRequest partRequest = new UploadMultipartPartRequest()
-            .withVaultName(archiveMPU.arguments.vaultName())
-            .withBody(new ByteArrayInputStream(bytesRead))
-            .withChecksum(checksum)
-            .withRange(contentRange)
-            .withUploadId(uploadId);
-        UploadMultipartPartResult partResult =
-            archiveMPU.client().uploadMultipartPart(partRequest);
-        log.info(completed.incrementAndGet() + " of " +
-            numParts.get() + " parts completed. Range: " +
-            contentRange + ", checksum: " +
-            partResult.getChecksum());
-        return partResult;
-      } catch (Exception e) {
-        log.info(contentRange + " (attempt " + i + " / " + MAX_ATTEMPTS + ") failed: " + e.getMessage());
+        if (e != null) {
+          throw cause(e);
+        }
+        won(start, contentRange, verify(new UploadMultipartPartResult().withChecksum(returned)));
+      } catch (InterruptedException x) {
+        result.completeExceptionally(x);
+      } catch (Exception x) {
+        failed(start, contentRange, attempt, x);
+        retry = attempt != HEDGE && !result.isDone();
+      } finally {
+        endAttempt();
+      }
+      if (retry) {
+        attemptAsync(uploader, readers, contentRange, attempt + 1);
+      }
+    });
+  }
+
+  /**
+   * @return false if the part is already done, so there is no need for the attempt
+   */
+  private boolean startAttempt(int attempt) {
+    attempts.incrementAndGet();
+    if (result.isDone()) {
+      endAttempt();
+      return false;
+    }
+    if (attempt != HEDGE) {
+      attemptStart = System.nanoTime();
+    }
+    return true;
+  }
+
+  private void endAttempt() {
+    attempts.decrementAndGet();
+    settle();
+  }
+
+  private void settle() {
+    if (result.isDone() && attempts.get() == 0) {
+      settled.complete(null);
+    }
+  }
+
+  private void giveUp(String contentRange) {
+    result.completeExceptionally(new IllegalStateException(contentRange + ": Giving up after " +
+        MAX_ATTEMPTS + " attempts"));
+    settle();
+  }
+
+  private String contentRange() {
+    return String.format("bytes %d-%d/*",
+        offset,
+        offset + length - 1);
+  }
+
+  private void won(long start, String contentRange, UploadMultipartPartResult partResult) {
+    if (!result.complete(partResult)) {
+      // the other attempt was faster
+      return;
+    }
+    long now = System.nanoTime();
+    concurrency.uploaded(start, length);
+    if (hedging != null) {
+      hedging.uploaded(now - start, length);
+    }
+    log.info(completed.incrementAndGet() + " of " +
+        numParts.get() + " parts completed. Range: " +
+        contentRange + ", checksum: " +
+        partResult.getChecksum());
+  }
+
+  private void failed(long start, String contentRange, int attempt, Exception e) {
+    if (result.isDone()) {
+      // it lost against the other attempt, and was cancelled
+      return;
+    }
+    concurrency.failed(start, e);
+    log.info(contentRange + (attempt == HEDGE ? " (hedge)" : " (attempt " + attempt + " / " + MAX_ATTEMPTS + ")") +
+        " failed: " + e.getMessage());
+    if (isChecksumMismatch(e)) {
+      // The leaves may have come from the hash cache, and the file may have changed since.
+      // Sending the same checksum again would fail every time.
+      source.invalidate(offset, length);
+      rehash.set(true);
+    }
+  }
+
+  private static boolean isChecksumMismatch(Exception e) {
+    return e instanceof ChecksumMismatchException ||
+        e instanceof AmazonServiceException &&
+            ((AmazonServiceException) e).getStatusCode() == 400 &&
+            "InvalidParameterValueException".equals(((AmazonServiceException) e).getErrorCode());
+  }
+
+  private static Exception cause(Throwable e) {
+    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    if (cause instanceof UncheckedIOException) {
+      return ((UncheckedIOException) cause).getCause();
+    }
+    return cause instanceof Exception ? (Exception) cause : new ExecutionException(cause);
+  }
+
+  private UploadMultipartPartResult upload(String contentRange) throws Exception {
+    ByteBuffer body = read();
+    try {
+      UploadMultipartPartRequest partRequest = new UploadMultipartPartRequest()
+          .withVaultName(archiveMPU.arguments.vaultName())
+          .withBody(new CancellableBody(new ByteBufferInputStream(body)))
+          .withChecksum(checksum)
+          .withRange(contentRange)
+          .withUploadId(uploadId);
+      if (payloadHash != null) {
+        partRequest.addHandlerContext(PayloadHashSigner.payloadHash, payloadHash);
+      }
+      try (ClientPool.Lease lease = archiveMPU.clients.lease()) {
+        return verify(lease.client().uploadMultipartPart(partRequest));
       }
+    } finally {
+      source.release(body);
     }
-    throw new IllegalStateException(contentRange + ": Giving up after " + MAX_ATTEMPTS + " attempts");
   }
 
+  private ByteBuffer read() throws IOException, InterruptedException {
+    // The bytes are read again for every attempt, so that a part
+    // holds no memory while it waits in the queue or between retries.
+    // The leaf digests are computed during the first read, in the same pass over the bytes,
+    // and again after glacier has rejected them.
+    LeafDigests newLeaves = checksum == null || rehash.compareAndSet(true, false) ?
+        LeafDigests.forLength(length) :
+        null;
+    ByteBuffer body = source.read(offset, length, newLeaves);
+    if (newLeaves != null) {
+      root = newLeaves.root();
+      checksum = BinaryUtils.toHex(root);
+      byte[] linear = newLeaves.payloadHash();
+      payloadHash = linear == null ? null : BinaryUtils.toHex(linear);
+    }
+    return body;
+  }
+
+  private UploadMultipartPartResult verify(UploadMultipartPartResult partResult) {
+    if (!TreeHashes.matches(root, partResult.getChecksum())) {
+      // glacier received different bytes than were hashed, so send the part again
+      throw new ChecksumMismatchException("Checksum mismatch: expected " + checksum +
+          ", glacier returned " + partResult.getChecksum());
+    }
+    return partResult;
+  }
+
+  long offset() {
+    return offset;
+  }
 
   int length() {
-    return bytesRead == null ? 0 : bytesRead.length;
+    return length;
+  }
+
+  private static final class ChecksumMismatchException extends IllegalStateException {
+
+    private static final long serialVersionUID = 1L;
+
+    ChecksumMismatchException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * A request body that stops the blocking client from sending the rest of the part
+   * once the other attempt has won, or the part was cancelled.
+   */
+  private final class CancellableBody extends FilterInputStream {
+
+    CancellableBody(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      checkCancelled();
+      return super.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      checkCancelled();
+      return super.read(b, off, len);
+    }
+
+    private void checkCancelled() throws InterruptedIOException {
+      if (result.isDone()) {
+        throw new InterruptedIOException(result.isCancelled() ?
+            "The upload of this part was cancelled" :
+            "Another upload of this part has won");
+      }
+    }
   }
 }
@@ -0,0 +1,199 @@
+package ich.bins;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs part uploads on a thread pool, or on an {@link AsyncPartUploader},
+ * while the caller keeps producing parts.
+ * The number of submitted parts that are not yet uploaded is bounded,
+ * and {@link AdaptiveConcurrency} decides how many of them are sent at the same time.
+ * Parts that take much longer than the others are sent a second time, see {@link Hedging}.
+ */
+final class UploadPipeline implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(UploadPipeline.class);
+
+  final AtomicInteger numParts = new AtomicInteger();
+  final AtomicInteger completed = new AtomicInteger();
+  final AdaptiveConcurrency concurrency;
+  final Hedging hedging;
+
+  private final TreeHashAccumulator treeHash = new TreeHashAccumulator();
+  // the results are not kept, only whether each part has succeeded
+  private final List<Future<Void>> futures = new ArrayList<>();
+  private final AtomicBoolean failed = new AtomicBoolean();
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  // a permit for each part that may still be using its bytes
+  private final Semaphore partsInFlight;
+  private final int maxPartsInFlight;
+  private final ExecutorService pool;
+  private final int partSize;
+  private final Checkpoint checkpoint;
+  private final AsyncPartUploader uploader;
+  private final Set<UploadPartCommand> uploading = ConcurrentHashMap.newKeySet();
+  private final ScheduledExecutorService hedger;
+
+  /**
+   * @param hedging    decides when a straggling part is sent again, or {@code null}
+   * @param checkpoint where uploaded parts are recorded, or {@code null};
+   *                   the parts that it already contains are not uploaded again
+   * @param uploader   sends the parts without blocking, or {@code null} to send
+   *                   each part from its own thread
+   */
+  UploadPipeline(AdaptiveConcurrency concurrency, Hedging hedging, int partsInFlight, int partSize,
+                 Checkpoint checkpoint, AsyncPartUploader uploader) {
+    this.concurrency = concurrency;
+    this.hedging = hedging;
+    this.uploader = uploader;
+    this.partSize = partSize;
+    this.checkpoint = checkpoint;
+    if (checkpoint != null) {
+      checkpoint.nodes().forEach(treeHash::add);
+      completed.set((int) (checkpoint.offset() / partSize));
+      numParts.set(completed.get());
+    }
+    this.partsInFlight = new Semaphore(partsInFlight);
+    this.maxPartsInFlight = partsInFlight;
+    this.pool = UploadThreads.newExecutor();
+    if (hedging != null) {
+      this.hedger = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "hedger");
+        thread.setDaemon(true);
+        return thread;
+      });
+      hedger.scheduleWithFixedDelay(this::hedgeStragglers, 500, 500, TimeUnit.MILLISECONDS);
+    } else {
+      this.hedger = null;
+    }
+  }
+
+  /**
+   * @return the number of bytes at the start of the input that were uploaded by an earlier run
+   */
+  long resumeOffset() {
+    return checkpoint == null ? 0 : checkpoint.offset();
+  }
+
+  /**
+   * @return true if a part upload has given up, so there is no point in submitting more parts
+   */
+  boolean failed() {
+    return failed.get();
+  }
+
+  /**
+   * Like {@link #submit(UploadPartCommand, Runnable)}, for a part whose bytes need no cleanup.
+   */
+  void submit(UploadPartCommand command) throws InterruptedException {
+    submit(command, () -> {
+    });
+  }
+
+  /**
+   * Blocks while too many parts are in flight, or while as many parts are
+   * uploading as {@link AdaptiveConcurrency} allows.
+   *
+   * @param whenDone called after the command has finished, successfully or not,
+   *                 and no attempt uses the part's bytes any more
+   */
+  void submit(UploadPartCommand command, Runnable whenDone) throws InterruptedException {
+    partsInFlight.acquire();
+    concurrency.acquire();
+    uploading.add(command);
+    futures.add(command.start(pool, uploader)
+        .thenAccept(result -> partUploaded(command))
+        .whenComplete((v, e) -> {
+          uploading.remove(command);
+          if (e != null) {
+            failed.set(true);
+          }
+          // a hedge that lost may still be sending, but it is being cancelled
+          concurrency.release();
+        }));
+    command.settled().whenComplete((v, e) -> {
+      partsInFlight.release();
+      whenDone.run();
+    });
+  }
+
+  private void hedgeStragglers() {
+    for (UploadPartCommand command : uploading) {
+      command.hedgeIfStraggling(pool, uploader);
+    }
+  }
+
+  private void partUploaded(UploadPartCommand command) {
+    // A part is a subtree of the archive's tree, so its checksum is a node of that tree.
+    treeHash.add(Integer.numberOfTrailingZeros(partSize / TreeHashes.leafSize),
+        command.offset() / partSize,
+        command.root,
+        (command.length() + TreeHashes.leafSize - 1) / TreeHashes.leafSize);
+    if (checkpoint != null) {
+      checkpoint.partUploaded(command.offset(), command.length(), command.root);
+    }
+  }
+
+  /**
+   * Waits for all submitted parts, also after one of them has failed,
+   * so that no part is still being sent when the upload is aborted.
+   *
+   * @return the tree hash of all parts
+   */
+  String awaitChecksum() throws InterruptedException {
+    boolean success = true;
+    for (Future<Void> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        log.error("Error", e.getCause());
+        success = false;
+      }
+    }
+    if (!success) {
+      throw new IllegalStateException("Some uploads have failed");
+    }
+    return treeHash.treeHash();
+  }
+
+  /**
+   * Cancels the parts that are still uploading, and waits until no attempt
+   * uses the bytes of a part any more, so that the input and the buffers
+   * can be closed. Closing again has no effect.
+   */
+  @Override
+  public void close() {
+    if (closed.getAndSet(true)) {
+      return;
+    }
+    uploading.forEach(UploadPartCommand::cancel);
+    try {
+      // an attempt that is waiting for a response stops at the latest when it times out
+      if (!partsInFlight.tryAcquire(maxPartsInFlight, 5, TimeUnit.MINUTES)) {
+        log.warn("Some part uploads did not stop");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (hedger != null) {
+      hedger.shutdownNow();
+    }
+    pool.shutdown();
+  }
+}
@@ -0,0 +1,21 @@
+package ich.bins;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the threads that upload parts. The number of uploads that run at the same time
+ * is limited by {@link AdaptiveConcurrency}, not by the executor.
+ *
+ * <p>On Java 21 and newer, the multi-release jar contains a version of this class
+ * from {@code src/main/java21} that runs each upload on a virtual thread.
+ */
+final class UploadThreads {
+
+  private UploadThreads() {
+  }
+
+  static ExecutorService newExecutor() {
+    return Executors.newCachedThreadPool();
+  }
+}
@@ -0,0 +1,20 @@
+package ich.bins;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends parts with the non-blocking http client of java 21, see {@link HttpPartUploader}.
+ */
+final class AsyncUploaders {
+
+  private static final Logger log = LoggerFactory.getLogger(AsyncUploaders.class);
+
+  private AsyncUploaders() {
+  }
+
+  static AsyncPartUploader create(Arguments arguments) {
+    log.info("Uploading with the non-blocking http client");
+    return new HttpPartUploader(arguments);
+  }
+}
@@ -0,0 +1,189 @@
+package ich.bins;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.profile.ProfileCredentialsProvider;
+import com.amazonaws.http.HttpMethodName;
+import com.amazonaws.services.glacier.model.UploadMultipartPartRequest;
+import com.amazonaws.util.json.Jackson;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends part uploads with the non-blocking {@link HttpClient}, so that a few threads
+ * can drive hundreds of uploads. Requests are signed by {@link PayloadHashSigner},
+ * and part bodies are streamed from their buffers without copying them.
+ */
+final class HttpPartUploader implements AsyncPartUploader {
+
+  // the largest slice of a body that is handed to the http client at once
+  private static final int chunkSize = 65536;
+  // A request times out if the response has not arrived this long after the body
+  // could have been sent at minBytesPerSecond; the blocking client's socket timeout is as long.
+  private static final Duration responseTimeout = Duration.ofSeconds(50);
+  private static final long minBytesPerSecond = 256 * 1024;
+
+  private final Arguments arguments;
+  private final URI endpoint;
+  private final AWSCredentialsProvider credentials = new ProfileCredentialsProvider();
+  private final PayloadHashSigner signer = new PayloadHashSigner();
+  private final ExecutorService executor;
+  private final HttpClient client;
+
+  HttpPartUploader(Arguments arguments) {
+    this.arguments = arguments;
+    String endpoint = arguments.serviceEndpoint();
+    this.endpoint = URI.create(endpoint.contains("://") ? endpoint : "https://" + endpoint);
+    signer.setServiceName("glacier");
+    signer.setRegionName(arguments.signingRegion());
+    this.executor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+      Thread thread = new Thread(r, "async-upload");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.client = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_1_1)
+        .connectTimeout(Duration.ofSeconds(10))
+        .executor(executor)
+        .build();
+  }
+
+  @Override
+  public CompletableFuture<String> upload(String uploadId, String contentRange,
+                                   String checksum, String payloadHash, ByteBuffer body) {
+    UploadMultipartPartRequest original = new UploadMultipartPartRequest();
+    if (payloadHash != null) {
+      original.addHandlerContext(PayloadHashSigner.payloadHash, payloadHash);
+    }
+    DefaultRequest<Void> request = new DefaultRequest<>(original, "AmazonGlacier");
+    request.setHttpMethod(HttpMethodName.PUT);
+    request.setEndpoint(endpoint);
+    request.setResourcePath("/-/vaults/" + arguments.vaultName() + "/multipart-uploads/" + uploadId);
+    request.addHeader("x-amz-glacier-version", "2012-06-01");
+    request.addHeader("Content-Range", contentRange);
+    request.addHeader("x-amz-sha256-tree-hash", checksum);
+    request.addHeader("x-amz-content-sha256", "required");
+    // only read by the signer if there is no payload hash
+    request.setContent(new ByteBufferInputStream(body));
+    signer.sign(request, credentials.getCredentials());
+
+    HttpRequest.Builder http = HttpRequest.newBuilder(URI.create(endpoint + request.getResourcePath()))
+        .PUT(HttpRequest.BodyPublishers.fromPublisher(publisher(body), body.remaining()))
+        .timeout(responseTimeout.plusSeconds(body.remaining() / minBytesPerSecond));
+    for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+      // the http client sets the host itself
+      if (!header.getKey().equalsIgnoreCase("Host")) {
+        http.header(header.getKey(), header.getValue());
+      }
+    }
+    CompletableFuture<HttpResponse<String>> response = client.sendAsync(http.build(),
+        HttpResponse.BodyHandlers.ofString());
+    CompletableFuture<String> treeHash = response.thenApply(HttpPartUploader::treeHash);
+    treeHash.whenComplete((hash, e) -> {
+      if (treeHash.isCancelled()) {
+        // aborts the exchange and closes its connection
+        response.cancel(true);
+      }
+    });
+    return treeHash;
+  }
+
+  private static String treeHash(HttpResponse<String> response) {
+    if (response.statusCode() / 100 != 2) {
+      throw error(response);
+    }
+    return response.headers().firstValue("x-amz-sha256-tree-hash")
+        .orElseThrow(() -> new IllegalStateException("Glacier did not return a checksum"));
+  }
+
+  /**
+   * Turns an error response into the exception that the sdk would have thrown,
+   * so that {@link AdaptiveConcurrency} recognizes throttling.
+   */
+  private static AmazonServiceException error(HttpResponse<String> response) {
+    String code = null;
+    String message = response.body();
+    try {
+      JsonNode json = Jackson.jsonNodeOf(response.body());
+      code = json.path("code").asText(null);
+      message = json.path("message").asText(message);
+    } catch (RuntimeException e) {
+      // not json, keep the body as the message
+    }
+    AmazonServiceException exception = new AmazonServiceException(message);
+    exception.setServiceName("AmazonGlacier");
+    exception.setStatusCode(response.statusCode());
+    exception.setErrorCode(code);
+    exception.setErrorType(response.statusCode() >= 500 ?
+        AmazonServiceException.ErrorType.Service :
+        AmazonServiceException.ErrorType.Client);
+    exception.setRequestId(response.headers().firstValue("x-amzn-RequestId").orElse(null));
+    return exception;
+  }
+
+  /**
+   * Publishes slices of the body as they are requested. Every subscriber gets the whole body,
+   * so the http client can send it again.
+   */
+  private static Flow.Publisher<ByteBuffer> publisher(ByteBuffer body) {
+    return subscriber -> subscriber.onSubscribe(new Flow.Subscription() {
+
+      private final ByteBuffer remaining = body.duplicate();
+      private final AtomicLong demand = new AtomicLong();
+      // serializes the emitting loop, the subscriber may request more from onNext
+      private final AtomicInteger requests = new AtomicInteger();
+      private volatile boolean done;
+
+      @Override
+      public void request(long n) {
+        if (n <= 0) {
+          done = true;
+          subscriber.onError(new IllegalArgumentException("Requested " + n + " items"));
+          return;
+        }
+        demand.getAndAccumulate(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+        if (requests.getAndIncrement() != 0) {
+          return;
+        }
+        do {
+          while (!done && demand.get() > 0 && remaining.hasRemaining()) {
+            int length = Math.min(chunkSize, remaining.remaining());
+            ByteBuffer chunk = remaining.slice(remaining.position(), length);
+            remaining.position(remaining.position() + length);
+            demand.decrementAndGet();
+            subscriber.onNext(chunk);
+          }
+          if (!done && !remaining.hasRemaining()) {
+            done = true;
+            subscriber.onComplete();
+          }
+        } while (requests.decrementAndGet() != 0);
+      }
+
+      @Override
+      public void cancel() {
+        done = true;
+      }
+    });
+  }
+
+  @Override
+  public void close() {
+    client.close();
+    executor.shutdown();
+  }
+}
@@ -0,0 +1,25 @@
+package ich.bins;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs each upload on a virtual thread, so that hundreds of blocking uploads
+ * do not need hundreds of platform threads.
+ * The number of uploads that run at the same time is limited by {@link AdaptiveConcurrency}.
+ */
+final class UploadThreads {
+
+  private static final Logger log = LoggerFactory.getLogger(UploadThreads.class);
+
+  private UploadThreads() {
+  }
+
+  static ExecutorService newExecutor() {
+    log.info("Uploading on virtual threads");
+    return Executors.newVirtualThreadPerTaskExecutor();
+  }
+}
@@ -0,0 +1,134 @@
+package ich.bins;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CheckpointTest {
+
+  private static final int partSize = 4 * TreeHashes.leafSize;
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final Random random = new Random(3);
+
+  @Test
+  public void startWritesTheUploadId() throws Exception {
+    Path path = folder.getRoot().toPath().resolve("checkpoint");
+    Checkpoint.start(path, "upload-1", "vault", partSize, 1000, 2000);
+    Checkpoint loaded = Checkpoint.load(path);
+    assertEquals("upload-1", loaded.uploadId());
+    assertEquals(partSize, loaded.partSize());
+    assertEquals(0, loaded.offset());
+    assertTrue(loaded.nodes().isEmpty());
+    loaded.verify("vault", 1000, 2000);
+  }
+
+  @Test
+  public void noCheckpoint() throws Exception {
+    assertNull(Checkpoint.load(folder.getRoot().toPath().resolve("missing")));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void differentInput() throws Exception {
+    Path path = folder.getRoot().toPath().resolve("checkpoint");
+    Checkpoint.start(path, "upload-1", "vault", partSize, 1000, 2000);
+    Checkpoint.load(path).verify("vault", 1000, 2001);
+  }
+
+  @Test
+  public void resumeAfterShuffledParts() throws Exception {
+    // 10 parts of 4 leaves, and a short last part of 3 leaves
+    LeafDigests all = randomLeaves(43);
+    List<byte[]> roots = partRoots(all);
+    Path path = folder.getRoot().toPath().resolve("checkpoint");
+    Checkpoint checkpoint = Checkpoint.start(path, "upload-1", "vault", partSize, 1000, 2000);
+
+    // parts 0 to 5 arrive out of order, part 7 after a gap
+    List<Integer> first = new ArrayList<>(Arrays.asList(0, 1, 2, 3, 4, 7));
+    Collections.shuffle(first, random);
+    for (int part : first) {
+      checkpoint.partUploaded((long) part * partSize, partSize, roots.get(part));
+    }
+    // the checkpoint is written at most once a second
+    Thread.sleep(1100);
+    checkpoint.partUploaded(5L * partSize, partSize, roots.get(5));
+    assertEquals(6L * partSize, checkpoint.offset());
+
+    Checkpoint loaded = Checkpoint.load(path);
+    loaded.verify("vault", 1000, 2000);
+    assertEquals(6L * partSize, loaded.offset());
+    TreeHashAccumulator treeHash = new TreeHashAccumulator();
+    loaded.nodes().forEach(treeHash::add);
+    // the resumed run uploads the parts after the offset, including the one after the gap
+    List<Integer> rest = new ArrayList<>();
+    for (int part = 6; part < roots.size(); part++) {
+      rest.add(part);
+    }
+    Collections.shuffle(rest, random);
+    for (int part : rest) {
+      int leaves = Math.min(4, all.count() - 4 * part);
+      treeHash.add(2, part, roots.get(part), leaves);
+    }
+    assertEquals(all.treeHash(), treeHash.treeHash());
+  }
+
+  @Test
+  public void shortLastPartIsNotRecorded() throws Exception {
+    LeafDigests all = randomLeaves(7);
+    List<byte[]> roots = partRoots(all);
+    Path path = folder.getRoot().toPath().resolve("checkpoint");
+    Checkpoint checkpoint = Checkpoint.start(path, "upload-1", "vault", partSize, 1000, 2000);
+    checkpoint.partUploaded(0, partSize, roots.get(0));
+    checkpoint.partUploaded(partSize, 3 * TreeHashes.leafSize, roots.get(1));
+    assertEquals(partSize, checkpoint.offset());
+  }
+
+  @Test
+  public void deleteAfterCompletion() throws Exception {
+    Path path = folder.getRoot().toPath().resolve("checkpoint");
+    Checkpoint checkpoint = Checkpoint.start(path, "upload-1", "vault", partSize, 1000, 2000);
+    checkpoint.delete();
+    assertFalse(Files.exists(path));
+    // a hedge that completes late does not write the checkpoint again
+    Thread.sleep(1100);
+    checkpoint.partUploaded(0, partSize, randomLeaves(4).root());
+    assertFalse(Files.exists(path));
+  }
+
+  private LeafDigests randomLeaves(int count) {
+    LeafDigests leaves = new LeafDigests(count);
+    byte[] digest = new byte[LeafDigests.digestLength];
+    for (int i = 0; i < count; i++) {
+      random.nextBytes(digest);
+      leaves.add(digest);
+    }
+    return leaves;
+  }
+
+  private static List<byte[]> partRoots(LeafDigests all) {
+    List<byte[]> roots = new ArrayList<>();
+    for (int first = 0; first < all.count(); first += 4) {
+      LeafDigests part = new LeafDigests(4);
+      for (int i = first; i < Math.min(all.count(), first + 4); i++) {
+        part.add(all.get(i));
+      }
+      roots.add(part.root());
+    }
+    return roots;
+  }
+}
@@ -0,0 +1,146 @@
+package ich.bins;
+
+import com.amazonaws.services.glacier.AbstractAmazonGlacier;
+import com.amazonaws.services.glacier.AmazonGlacier;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ClientPoolTest {
+
+  private final Queue<FakeClient> created = new ConcurrentLinkedQueue<>();
+
+  private AmazonGlacier newClient() {
+    FakeClient client = new FakeClient();
+    created.add(client);
+    return client;
+  }
+
+  @Test
+  public void roundRobin() {
+    ClientPool pool = new ClientPool(this::newClient, 3, 100);
+    List<AmazonGlacier> clients = new ArrayList<>();
+    for (int i = 0; i < 6; i++) {
+      try (ClientPool.Lease lease = pool.lease()) {
+        clients.add(lease.client());
+      }
+    }
+    assertNotSame(clients.get(0), clients.get(1));
+    assertNotSame(clients.get(1), clients.get(2));
+    assertNotSame(clients.get(0), clients.get(2));
+    assertEquals(clients.subList(0, 3), clients.subList(3, 6));
+    assertEquals(3, created.size());
+  }
+
+  @Test
+  public void retiredClientIsShutDownAfterItsLastLease() {
+    ClientPool pool = new ClientPool(this::newClient, 1, 3);
+    ClientPool.Lease first = pool.lease();
+    FakeClient old = (FakeClient) first.client();
+    pool.lease().close();
+    // the third lease retires the client
+    ClientPool.Lease third = pool.lease();
+    assertSame(old, third.client());
+    try (ClientPool.Lease next = pool.lease()) {
+      assertNotSame(old, next.client());
+    }
+    third.close();
+    assertEquals(0, old.shutdowns.get());
+    first.close();
+    assertEquals(1, old.shutdowns.get());
+    assertEquals(2, created.size());
+  }
+
+  @Test
+  public void closeShutsDownClientsInUse() {
+    ClientPool pool = new ClientPool(this::newClient, 2, 100);
+    ClientPool.Lease lease = pool.lease();
+    pool.close();
+    for (FakeClient client : created) {
+      assertEquals(1, client.shutdowns.get());
+    }
+    // closing the lease afterwards does not shut the client down twice
+    lease.close();
+    assertEquals(1, ((FakeClient) lease.client()).shutdowns.get());
+  }
+
+  @Test
+  public void contention() throws Exception {
+    int threads = 16;
+    int leasesPerThread = 20000;
+    int clientLife = 50;
+    ClientPool pool = new ClientPool(this::newClient, 4, clientLife);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      futures.add(executor.submit(() -> {
+        start.await();
+        for (int i = 0; i < leasesPerThread; i++) {
+          try (ClientPool.Lease lease = pool.lease()) {
+            FakeClient client = (FakeClient) lease.client();
+            client.leases.incrementAndGet();
+            // a client must not be shut down while it is leased
+            assertEquals(0, client.shutdowns.get());
+            Thread.yield();
+            assertEquals(0, client.shutdowns.get());
+          }
+        }
+        return null;
+      }));
+    }
+    start.countDown();
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+
+    int leases = 0;
+    int retired = 0;
+    for (FakeClient client : created) {
+      // threads that took the client from its slot before it was replaced still lease it
+      assertTrue(client.leases.get() <= clientLife + threads);
+      leases += client.leases.get();
+      if (client.shutdowns.get() == 1) {
+        assertTrue(client.leases.get() >= clientLife);
+        retired++;
+      } else {
+        assertEquals(0, client.shutdowns.get());
+      }
+    }
+    assertEquals(threads * leasesPerThread, leases);
+    // every client that reached its life was replaced and shut down, the others are in the slots
+    assertEquals(created.size() - 4, retired);
+
+    pool.close();
+    for (FakeClient client : created) {
+      assertEquals(1, client.shutdowns.get());
+    }
+    assertFalse(created.isEmpty());
+  }
+
+  private static final class FakeClient extends AbstractAmazonGlacier {
+
+    final AtomicInteger leases = new AtomicInteger();
+    final AtomicInteger shutdowns = new AtomicInteger();
+
+    @Override
+    public void shutdown() {
+      shutdowns.incrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package ich.bins;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TreeHashAccumulatorTest {
+
+  private final Random random = new Random(7);
+
+  @Test
+  public void partsInShuffledOrder() {
+    for (int leaves : new int[]{1, 2, 3, 5, 8, 13, 64, 100, 257}) {
+      LeafDigests all = randomLeaves(leaves);
+      String expected = all.treeHash();
+      for (int height = 0; height <= 5; height++) {
+        for (int round = 0; round < 5; round++) {
+          List<Part> parts = parts(all, height);
+          Collections.shuffle(parts, random);
+          TreeHashAccumulator accumulator = new TreeHashAccumulator();
+          for (Part part : parts) {
+            accumulator.add(height, part.index, part.root, part.leaves);
+          }
+          assertEquals(leaves + " leaves, parts of height " + height, expected, accumulator.treeHash());
+        }
+      }
+    }
+  }
+
+  @Test
+  public void restoredFromNodes() {
+    LeafDigests all = randomLeaves(100);
+    int height = 2;
+    List<Part> parts = parts(all, height);
+    // the first parts of the archive, in any order, as a checkpoint records them
+    int prefix = 17;
+    List<Part> first = new ArrayList<>(parts.subList(0, prefix));
+    Collections.shuffle(first, random);
+    TreeHashAccumulator before = new TreeHashAccumulator();
+    for (Part part : first) {
+      before.add(height, part.index, part.root, part.leaves);
+    }
+    TreeHashAccumulator after = new TreeHashAccumulator();
+    before.nodes().forEach(after::add);
+    List<Part> rest = new ArrayList<>(parts.subList(prefix, parts.size()));
+    Collections.shuffle(rest, random);
+    for (Part part : rest) {
+      after.add(height, part.index, part.root, part.leaves);
+    }
+    assertEquals(all.treeHash(), after.treeHash());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void missingPart() {
+    List<Part> parts = parts(randomLeaves(20), 1);
+    parts.remove(4);
+    TreeHashAccumulator accumulator = new TreeHashAccumulator();
+    for (Part part : parts) {
+      accumulator.add(1, part.index, part.root, part.leaves);
+    }
+    accumulator.treeHash();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void noParts() {
+    new TreeHashAccumulator().treeHash();
+  }
+
+  private LeafDigests randomLeaves(int count) {
+    LeafDigests leaves = new LeafDigests(count);
+    byte[] digest = new byte[LeafDigests.digestLength];
+    for (int i = 0; i < count; i++) {
+      random.nextBytes(digest);
+      leaves.add(digest);
+    }
+    return leaves;
+  }
+
+  /**
+   * @return the parts of {@code 2^height} leaves each, the last one possibly shorter
+   */
+  private static List<Part> parts(LeafDigests all, int height) {
+    List<Part> parts = new ArrayList<>();
+    int size = 1 << height;
+    for (int first = 0; first < all.count(); first += size) {
+      LeafDigests part = new LeafDigests(size);
+      for (int i = first; i < Math.min(all.count(), first + size); i++) {
+        part.add(all.get(i));
+      }
+      parts.add(new Part(first / size, part.root(), part.count()));
+    }
+    return parts;
+  }
+
+  private static final class Part {
+
+    final long index;
+    final byte[] root;
+    final int leaves;
+
+    Part(long index, byte[] root, int leaves) {
+      this.index = index;
+      this.root = root;
+      this.leaves = leaves;
+    }
+  }
+}
@@ -0,0 +1,172 @@
+package ich.bins;
+
+import com.amazonaws.services.glacier.TreeHashGenerator;
+import com.amazonaws.util.BinaryUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TreeHashesTest {
+
+  private static final int leaf = TreeHashes.leafSize;
+
+  // from a single partial leaf up to 301 leaves, the last one partial
+  private static final int[] lengths = {
+      1, leaf - 1, leaf, leaf + 1, 2 * leaf, 3 * leaf - 7, 17 * leaf + 100, 300 * leaf + 12345};
+
+  private static byte[] bytes;
+  private static Path file;
+  private static FileChannel channel;
+
+  @BeforeClass
+  public static void createData() throws IOException {
+    bytes = new byte[lengths[lengths.length - 1]];
+    new Random(42).nextBytes(bytes);
+    file = Files.createTempFile("tree-hashes", ".bin");
+    Files.write(file, bytes);
+    channel = FileChannel.open(file, StandardOpenOption.READ);
+  }
+
+  @AfterClass
+  public static void deleteData() throws IOException {
+    channel.close();
+    Files.delete(file);
+  }
+
+  @Test
+  public void heapBuffers() {
+    for (int length : lengths) {
+      check(ByteBuffer.wrap(bytes, 0, length).slice(), length);
+    }
+  }
+
+  @Test
+  public void heapBufferWithOffset() {
+    // the leaves start at the position of the buffer, not at the start of the array
+    int offset = 4096;
+    int length = 5 * leaf + 3;
+    ByteBuffer data = ByteBuffer.wrap(bytes, offset, length);
+    String expected = TreeHashGenerator.calculateTreeHash(new ByteArrayInputStream(bytes, offset, length));
+    LeafDigests leaves = LeafDigests.forLength(length);
+    TreeHashes.digestLeaves(TreeHashes.sha256(), data, leaves);
+    assertEquals(expected, leaves.treeHash());
+    assertEquals(offset, data.position());
+  }
+
+  @Test
+  public void directBuffers() {
+    ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+    direct.put(bytes).flip();
+    for (int length : lengths) {
+      ByteBuffer data = direct.duplicate();
+      data.limit(length);
+      check(data.slice(), length);
+    }
+  }
+
+  @Test
+  public void mappedBuffers() throws IOException {
+    for (int length : lengths) {
+      MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+      check(data, length);
+    }
+  }
+
+  @Test
+  public void payloadHashIsTheLinearHash() throws Exception {
+    int length = 3 * leaf - 7;
+    LeafDigests leaves = LeafDigests.forLength(length);
+    TreeHashes.digestLeaves(TreeHashes.sha256(), ByteBuffer.wrap(bytes, 0, length), leaves);
+    MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+    sha256.update(bytes, 0, length);
+    assertArrayEquals(sha256.digest(), leaves.payloadHash());
+  }
+
+  @Test
+  public void copiedLeavesHaveNoPayloadHash() {
+    LeafDigests hashed = LeafDigests.forLength(leaf);
+    TreeHashes.digestLeaves(TreeHashes.sha256(), ByteBuffer.wrap(bytes, 0, leaf), hashed);
+    assertArrayEquals(hashed.get(0), hashed.payloadHash());
+    // leaves from the hash cache were not computed from the bytes that are sent
+    LeafDigests cached = LeafDigests.forLength(leaf);
+    cached.add(hashed.get(0));
+    assertNull(cached.payloadHash());
+    LeafDigests part = LeafDigests.forLength(leaf);
+    part.addAll(cached);
+    assertNull(part.payloadHash());
+  }
+
+  @Test
+  public void engine() throws Exception {
+    // the subtrees of up to 8 leaves are hashed sequentially, larger ones are split
+    int[] sizes = {1, leaf - 1, 16 * leaf, 16 * leaf + 1, 256 * leaf, 256 * leaf + 1};
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      TreeHashEngine engine = new TreeHashEngine(pool);
+      // the sdk can not hash empty input, which is a single empty leaf
+      assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(), engine.hash(channel, 0));
+      for (int size : sizes) {
+        String expected = TreeHashGenerator.calculateTreeHash(new ByteArrayInputStream(bytes, 0, size));
+        assertEquals(size + " bytes", expected, BinaryUtils.toHex(engine.hash(channel, size)));
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void matches() {
+    byte[] root = TreeHashes.sha256().digest(new byte[]{1, 2, 3});
+    assertTrue(TreeHashes.matches(root, BinaryUtils.toHex(root)));
+    assertTrue(TreeHashes.matches(root, BinaryUtils.toHex(root).toUpperCase()));
+    assertFalse(TreeHashes.matches(root, null));
+    assertFalse(TreeHashes.matches(root, "zz" + BinaryUtils.toHex(root).substring(2)));
+    byte[] other = root.clone();
+    other[31]++;
+    assertFalse(TreeHashes.matches(root, BinaryUtils.toHex(other)));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void noLeaves() {
+    new LeafDigests(0).root();
+  }
+
+  private static void check(ByteBuffer data, int length) {
+    String expected = TreeHashGenerator.calculateTreeHash(new ByteArrayInputStream(bytes, 0, length));
+
+    LeafDigests sequential = LeafDigests.forLength(length);
+    TreeHashes.digestLeaves(TreeHashes.sha256(), data, sequential);
+    assertEquals(length + " bytes", expected, sequential.treeHash());
+    assertEquals(0, data.position());
+
+    LeafDigests parallel = LeafDigests.forLength(length);
+    TreeHashes.digestLeavesInParallel(data, parallel);
+    assertEquals(length + " bytes, in parallel", expected, parallel.treeHash());
+    assertArrayEquals(sequential.payloadHash(), parallel.payloadHash());
+
+    // leaves that are added one by one, as the part sources do, give the same root
+    LeafDigests added = new LeafDigests(1);
+    for (int i = 0; i < sequential.count(); i++) {
+      added.add(sequential.get(i));
+    }
+    assertEquals(length + " bytes, added", expected, BinaryUtils.toHex(added.root()));
+  }
+}